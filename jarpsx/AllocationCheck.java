@@ -0,0 +1,119 @@
+import jarpsx.backend.Emulator;
+import jarpsx.backend.mips.MIPS;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+
+/*
+ * Runs a load heavy loop on every CPU backend under a JFR recording and fails when
+ * allocation events are reported from MIPS.step. The loop is warmed up first so
+ * block compilation is done before recording starts.
+ *
+ *   AllocationCheck [steps]
+ */
+public class AllocationCheck {
+    private static final int CODE = 0x80010000;
+    private static final int DATA = 0x80100000;
+    private static final String[] BACKEND_NAMES = { "interpreter", "cached interpreter", "recompiler" };
+
+    private static int encodeR(int rs, int rt, int rd, int function) {
+        return rs << 21 | rt << 16 | rd << 11 | function;
+    }
+
+    private static int encodeI(int opcode, int rs, int rt, int immediate) {
+        return opcode << 26 | rs << 21 | rt << 16 | (immediate & 0xFFFF);
+    }
+
+    /* Loads and stores back to back so every iteration goes through the load delay slots */
+    private static final int[] LOOP = {
+        encodeI(0x09, 0, 8, 256),        // addiu t0, zero, 256
+        encodeI(0x0F, 0, 9, DATA >>> 16), // lui t1, DATA
+        encodeI(0x23, 9, 10, 0),         // lw t2, 0(t1)
+        encodeI(0x23, 9, 11, 4),         // lw t3, 4(t1)
+        encodeR(10, 11, 12, 0x21),       // addu t4, t2, t3
+        encodeI(0x20, 9, 13, 8),         // lb t5, 8(t1)
+        encodeI(0x22, 9, 12, 13),        // lwl t4, 13(t1)
+        encodeI(0x26, 9, 12, 10),        // lwr t4, 10(t1)
+        encodeI(0x2B, 9, 12, 0),         // sw t4, 0(t1)
+        encodeI(0x09, 9, 9, 4),          // addiu t1, t1, 4
+        encodeI(0x09, 8, 8, -1),         // addiu t0, t0, -1
+        encodeI(0x05, 8, 0, -10),        // bne t0, zero, lw t2
+        0,                               // nop
+        encodeI(0x04, 0, 0, -14),        // b addiu t0
+        0,                               // nop
+    };
+
+    public static void main(String[] args) throws Exception {
+        long steps = args.length > 0 ? Long.parseLong(args[0]) : 20000000L;
+        int failures = 0;
+        for (int backend = MIPS.BACKEND_INTERPRETER; backend <= MIPS.BACKEND_RECOMPILER; backend++)
+            failures += check(backend, steps);
+
+        if (failures != 0) {
+            System.out.printf("%d allocation events on the step path\n", failures);
+            System.exit(1);
+        }
+        System.out.println("No allocations on the step path");
+    }
+
+    private static int check(int backend, long steps) throws Exception {
+        Emulator emu = new Emulator();
+        MIPS mips = emu.mips;
+        mips.setBackend(backend);
+        for (int i = 0; i < LOOP.length; i++)
+            emu.memory.writeInt(CODE + i * 4, LOOP[i]);
+        mips.PC = CODE;
+
+        for (long i = 0; i < steps / 4; i++)
+            mips.step();
+
+        Path file = Files.createTempFile("allocation", ".jfr");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+        long allocated;
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.ObjectAllocationSample").with("throttle", "off").withStackTrace();
+            recording.enable("jdk.ObjectAllocationInNewTLAB").withStackTrace();
+            recording.enable("jdk.ObjectAllocationOutsideTLAB").withStackTrace();
+            recording.start();
+            long start = threads.getCurrentThreadAllocatedBytes();
+            for (long i = 0; i < steps; i++)
+                mips.step();
+            allocated = threads.getCurrentThreadAllocatedBytes() - start;
+            recording.stop();
+            recording.dump(file);
+        }
+
+        String threadName = Thread.currentThread().getName();
+        Map<String, Integer> sites = new HashMap<>();
+        int events = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (event.getThread() == null || !threadName.equals(event.getThread().getJavaName()) || event.getStackTrace() == null)
+                continue;
+            List<RecordedFrame> frames = event.getStackTrace().getFrames();
+            boolean onStepPath = false;
+            for (RecordedFrame frame : frames)
+                onStepPath |= frame.getMethod().getType().getName().equals("jarpsx.backend.mips.MIPS") && frame.getMethod().getName().equals("step");
+            if (!onStepPath)
+                continue;
+
+            events++;
+            RecordedFrame top = frames.get(0);
+            sites.merge(top.getMethod().getType().getName() + "." + top.getMethod().getName() + ":" + top.getLineNumber(), 1, Integer::sum);
+        }
+        Files.delete(file);
+
+        System.out.printf("%s: %d steps, %.4f bytes/step, %d allocation events on the step path\n", BACKEND_NAMES[backend], steps,
+                          allocated / (double)steps, events);
+        for (Map.Entry<String, Integer> site : sites.entrySet())
+            System.out.printf("    %s (%d)\n", site.getKey(), site.getValue());
+        return events;
+    }
+}
@@ -0,0 +1,219 @@
+import jarpsx.backend.Emulator;
+import jarpsx.backend.Memory;
+import jarpsx.backend.mips.MIPS;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/*
+ * Differential fuzzer for the CPU backends. Random programs are run on each backend given on
+ * the command line and on the interpreter for the same number of cycles, and the register file,
+ * load/branch delay state and memory contents are compared.
+ *
+ *   CpuFuzz <iterations> [backends...]
+ *
+ * Backends default to the cached interpreter and the recompiler. Set -Djarpsx.memory=offheap to
+ * run on the off-heap memory backing.
+ */
+public class CpuFuzz {
+    private static final int CODE = 0x80010000;
+    private static final int DATA = 0x80100000;
+    private static final int DATA_WORDS = 1024;
+
+    private static final int[] LOADS = { 0x20, 0x21, 0x23, 0x24, 0x25, 0x22, 0x26 };
+    private static final int[] STORES = { 0x28, 0x29, 0x2B, 0x2A, 0x2E };
+    private static final int[] SHIFTS = { 0x00, 0x02, 0x03 };
+    private static final int[] VARIABLE_SHIFTS = { 0x04, 0x06, 0x07 };
+    private static final int[] MISALIGNED = { 0x21, 0x23, 0x29, 0x2B };
+
+    private static int memoryBacking;
+    private static long cyclesElapsed;
+
+    private static int encodeR(int rs, int rt, int rd, int shift, int function) {
+        return rs << 21 | rt << 16 | rd << 11 | shift << 6 | function;
+    }
+
+    private static int encodeI(int opcode, int rs, int rt, int immediate) {
+        return opcode << 26 | rs << 21 | rt << 16 | (immediate & 0xFFFF);
+    }
+
+    private static int alignedOffset(Random random, int opcode) {
+        int offset = random.nextInt(256) * 4;
+        switch (opcode) {
+        case 0x23: case 0x2B:
+            return offset;
+        case 0x21: case 0x25: case 0x29:
+            return offset + 2 * random.nextInt(2);
+        default:
+            return offset + random.nextInt(4);
+        }
+    }
+
+    /*
+     * r13 points at the data area, r14 bounds backward loops, r15 points at the code so stores
+     * through it modify instructions ahead and r16/r17 hold instruction words to store there
+     */
+    private static int[] generate(Random random, int length) {
+        int[] program = new int[length + 2];
+        for (int i = 0; i < length; i++) {
+            int rs = 1 + random.nextInt(12), rt = 1 + random.nextInt(12), rd = 1 + random.nextInt(12);
+            int instruction = 0;
+            switch (random.nextInt(32)) {
+            case 0: instruction = encodeR(rs, rt, rd, 0, 0x21); break;
+            case 1: instruction = encodeR(rs, rt, rd, 0, 0x23); break;
+            case 2: instruction = encodeR(rs, rt, rd, 0, 0x24 + random.nextInt(4)); break;
+            case 3: instruction = encodeR(rs, rt, rd, 0, 0x2A + random.nextInt(2)); break;
+            case 4: instruction = encodeR(0, rt, rd, random.nextInt(32), SHIFTS[random.nextInt(3)]); break;
+            case 5: instruction = encodeR(rs, rt, rd, 0, VARIABLE_SHIFTS[random.nextInt(3)]); break;
+            case 6: instruction = encodeI(0x09, rs, rt, random.nextInt(65536)); break;
+            case 7: instruction = encodeI(0x0A + random.nextInt(6), rs, rt, random.nextInt(65536)); break;
+            case 8: instruction = encodeI(0x0F, 0, rt, random.nextInt(65536)); break;
+            case 9: instruction = encodeR(rs, rt, 0, 0, 0x18 + random.nextInt(4)); break;
+            case 10: instruction = encodeR(0, 0, rd, 0, 0x10 + 2 * random.nextInt(2)); break;
+            case 11: instruction = encodeR(rs, 0, 0, 0, 0x11 + 2 * random.nextInt(2)); break;
+            case 12: case 13: case 14: {
+                int opcode = LOADS[random.nextInt(LOADS.length)];
+                instruction = encodeI(opcode, 13, rt, alignedOffset(random, opcode));
+                break;
+            }
+            case 15: case 16: {
+                int opcode = STORES[random.nextInt(STORES.length)];
+                instruction = encodeI(opcode, 13, rt, alignedOffset(random, opcode));
+                break;
+            }
+            case 17: case 18: {
+                int offset = 1 + random.nextInt(6);
+                if (i + offset + 1 >= length)
+                    offset = 0;
+                int opcode = 4 + random.nextInt(4);
+                instruction = encodeI(opcode, rs, opcode >= 6 ? 0 : rt, offset);
+                break;
+            }
+            case 19:
+                instruction = i + 5 >= length ? 0 : encodeI(0x01, rs, random.nextInt(2), 1 + random.nextInt(3));
+                break;
+            case 20:
+                if (i < 4)
+                    break;
+                program[i++] = encodeI(0x09, 14, 14, -1);
+                instruction = encodeI(0x05, 14, 0, -2 - random.nextInt(4));
+                break;
+            case 21: {
+                int target = i + 3 + random.nextInt(8);
+                if (target < length)
+                    instruction = encodeI(0x2B, 15, 16 + (rt & 1), target * 4);
+                break;
+            }
+            case 22: {
+                int target = i + 3 + random.nextInt(4);
+                if (target < length)
+                    instruction = 3 << 26 | ((CODE + target * 4) >>> 2 & 0x3FFFFFF);
+                break;
+            }
+            case 23: instruction = encodeR(rs, rt, rd, 0, 0x20 + 2 * random.nextInt(2)); break;
+            case 24: instruction = encodeI(0x08, rs, rt, random.nextInt(65536)); break;
+            case 25: instruction = 0x10 << 26 | rt << 16 | 12 << 11; break;
+            case 26:
+                if (random.nextInt(8) == 0)
+                    instruction = encodeI(MISALIGNED[random.nextInt(MISALIGNED.length)], 13, rt, random.nextInt(1024) | 1);
+                break;
+            case 27: {
+                int target = i + 3 + random.nextInt(4);
+                if (target >= length)
+                    break;
+                program[i++] = encodeI(0x09, 15, 18, target * 4 + (random.nextInt(16) == 0 ? 2 : 0));
+                instruction = random.nextBoolean() ? encodeR(18, 0, 0, 0, 0x08) : encodeR(18, 0, rd, 0, 0x09);
+                break;
+            }
+            default: instruction = encodeR(rs, rt, rd, 0, 0x25); break;
+            }
+            if (i < length)
+                program[i] = instruction;
+        }
+        program[length] = encodeI(0x04, 0, 0, -1);
+        program[length + 1] = 0;
+        return program;
+    }
+
+    private static String run(int[] program, long cycles, int backend, long seed) {
+        Emulator emu = new Emulator(memoryBacking);
+        MIPS mips = emu.mips;
+        mips.setBackend(backend);
+        for (int i = 0; i < program.length; i++)
+            emu.memory.writeInt(CODE + i * 4, program[i]);
+
+        Random random = new Random(seed);
+        for (int i = 0; i < DATA_WORDS; i++)
+            emu.memory.writeInt(DATA + i * 4, random.nextInt());
+        for (int i = 1; i < 13; i++)
+            mips.gpr[i] = random.nextInt();
+        mips.gpr[13] = DATA;
+        mips.gpr[14] = 50;
+        mips.gpr[15] = CODE;
+        mips.gpr[16] = encodeI(0x09, 5, 5, 7);
+        mips.gpr[17] = encodeI(0x0D, 6, 7, 0x1234);
+        mips.PC = CODE;
+
+        StringBuilder state = new StringBuilder();
+        try {
+            while (mips.getCyclesElapsed() < cycles)
+                mips.step();
+        } catch (RuntimeException e) {
+            state.append("exception ").append(e).append(' ');
+        }
+        cyclesElapsed = mips.getCyclesElapsed();
+
+        for (int i = 0; i < 32; i++)
+            state.append(String.format("%08X ", mips.gpr[i]));
+        state.append(String.format("hi=%08X lo=%08X pc=%08X cycles=%d ", mips.hi, mips.lo, mips.PC, cyclesElapsed));
+        state.append(String.format("loadDelay=%d branchDelay=%b ", mips.loadDelayCounter, mips.branchDelaySet));
+
+        long hash = 0;
+        for (int i = 0; i < DATA_WORDS; i++)
+            hash = hash * 31 + emu.memory.readInt(DATA + i * 4);
+        for (int i = 0; i < program.length; i++)
+            hash = hash * 31 + emu.memory.readInt(CODE + i * 4);
+        state.append(String.format("memory=%016X", hash));
+        return state.toString();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("usage: CpuFuzz <iterations> [backends...]");
+            System.exit(1);
+        }
+
+        int iterations = Integer.parseInt(args[0]);
+        int[] backends = { MIPS.BACKEND_CACHED_INTERPRETER, MIPS.BACKEND_RECOMPILER };
+        if (args.length > 1) {
+            backends = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                backends[i - 1] = Integer.parseInt(args[i]);
+        }
+        memoryBacking = "offheap".equals(System.getProperty("jarpsx.memory")) ? Memory.BACKING_OFF_HEAP : Memory.BACKING_HEAP;
+
+        // the CPU reports exceptions and invalid opcodes through System.out
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        int failures = 0;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            Random random = new Random(iteration);
+            int[] program = generate(random, 40 + random.nextInt(200));
+            int cycles = 200 + random.nextInt(3000);
+            for (int backend : backends) {
+                String result = run(program, cycles, backend, iteration);
+                String expected = run(program, cyclesElapsed, MIPS.BACKEND_INTERPRETER, iteration);
+                if (!expected.equals(result)) {
+                    if (failures++ < 5)
+                        out.printf("seed %d backend %d mismatch\n  expected %s\n  got      %s\n", iteration, backend, expected, result);
+                }
+            }
+        }
+
+        out.printf("%d iterations, %d mismatches\n", iterations, failures);
+        if (failures != 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,136 @@
+import jarpsx.backend.CachedDisk;
+import jarpsx.backend.MappedDisk;
+import jarpsx.backend.SectorPrefetcher;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Checks the disc read paths against plain RandomAccessFile reads of the same image:
+ * the memory mapping, the LRU sector cache in front of it and the sector prefetcher.
+ * Without an image argument a random one is written to a temporary file.
+ *
+ *   DiscCheck [image]
+ */
+public class DiscCheck {
+    private static final int SECTOR_SIZE = 0x930;
+    private static final int GENERATED_SECTORS = 200;
+
+    private static int failures = 0;
+
+    private static void expect(boolean condition, String format, Object... args) {
+        if (!condition && failures++ < 10)
+            System.out.printf(format + "\n", args);
+    }
+
+    /* Reads through the file, bytes outside it read as zero */
+    private static boolean readFile(RandomAccessFile file, byte[] destination, long offset, int size) throws Exception {
+        Arrays.fill(destination, (byte)0);
+        int start = (int)Long.min(size, Long.max(0, -offset));
+        if (start < size && offset + start < file.length()) {
+            file.seek(offset + start);
+            int length = (int)Long.min(size - start, file.length() - offset - start);
+            file.readFully(destination, start, length);
+        }
+        return offset >= 0 && offset + size <= file.length();
+    }
+
+    private static void checkMapping(MappedDisk mapped, RandomAccessFile file, Random random) throws Exception {
+        long length = mapped.getLength();
+        for (int i = 0; i < 20000; i++) {
+            long offset = random.nextInt(4) == 0 ? length - 3000 + random.nextInt(6000) : (long)(random.nextDouble() * length);
+            if (random.nextInt(100) == 0)
+                offset = -random.nextInt(4000) - 1;
+            int size = 1 + random.nextInt(random.nextBoolean() ? 8 : 3 * SECTOR_SIZE);
+            byte[] expected = new byte[size], actual = new byte[size];
+            boolean expectedComplete = readFile(file, expected, offset, size);
+            boolean complete = mapped.readData(actual, offset, size);
+            expect(Arrays.equals(expected, actual) && complete == expectedComplete, "mapping: read of %d bytes at %d differs", size, offset);
+        }
+        System.out.printf("mapping: %d bytes checked\n", length);
+    }
+
+    private static void checkCache(MappedDisk mapped, Random random) {
+        long budget = SECTOR_SIZE * 40L;
+        CachedDisk cache = new CachedDisk(mapped, budget);
+        long length = mapped.getLength();
+        for (int i = 0; i < 50000; i++) {
+            // mostly near the start so the working set sometimes fits the budget
+            long offset = random.nextInt(10) == 0 ? length - 3000 + random.nextInt(6000)
+                        : (long)(Math.abs(random.nextGaussian()) * SECTOR_SIZE * 30) + random.nextInt(SECTOR_SIZE);
+            if (random.nextInt(200) == 0)
+                offset = -random.nextInt(100) - 1;
+            int size = 1 + random.nextInt(random.nextBoolean() ? 8 : 2 * SECTOR_SIZE);
+            byte[] expected = new byte[size], actual = new byte[size];
+            boolean expectedComplete = mapped.readData(expected, offset, size);
+            boolean complete = cache.readData(actual, offset, size);
+            expect(Arrays.equals(expected, actual) && complete == expectedComplete, "cache: read of %d bytes at %d differs", size, offset);
+            expect(cache.getSize() <= budget, "cache: size %d over the budget of %d", cache.getSize(), budget);
+        }
+        System.out.printf("cache: %d hits, %d misses, %d evictions, hit rate %.3f\n", cache.getHits(), cache.getMisses(),
+                          cache.getEvictions(), cache.getHitRate());
+    }
+
+    private static void checkPrefetcher(MappedDisk mapped, Random random) throws Exception {
+        SectorPrefetcher prefetcher = new SectorPrefetcher(mapped, 16);
+        int sectors = (int)(mapped.getLength() / SECTOR_SIZE);
+        byte[] expected = new byte[SECTOR_SIZE], actual = new byte[SECTOR_SIZE];
+        int lba = 0;
+        prefetcher.start(lba);
+        for (int i = 0; i < 3000; i++) {
+            if (random.nextInt(100) == 0) {
+                lba = random.nextInt(sectors);
+                prefetcher.start(lba);
+            }
+            if (random.nextInt(50) == 0)
+                lba++;
+            if (lba >= sectors) {
+                lba = 0;
+                prefetcher.start(lba);
+            }
+
+            if (!prefetcher.read(lba, actual))
+                mapped.readData(actual, (long)lba * SECTOR_SIZE, SECTOR_SIZE);
+            mapped.readData(expected, (long)lba * SECTOR_SIZE, SECTOR_SIZE);
+            expect(Arrays.equals(expected, actual), "prefetcher: sector %d differs", lba);
+            lba++;
+            if (random.nextInt(4) == 0)
+                Thread.sleep(1);
+        }
+        prefetcher.stop();
+        System.out.printf("prefetcher: %d hits, %d misses\n", prefetcher.getHits(), prefetcher.getMisses());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path image;
+        boolean generated = args.length < 1;
+        if (generated) {
+            image = Files.createTempFile("disc", ".bin");
+            byte[] data = new byte[GENERATED_SECTORS * SECTOR_SIZE + 100];
+            new Random(1).nextBytes(data);
+            Files.write(image, data);
+        } else {
+            image = Path.of(args[0]);
+        }
+
+        Random random = new Random(2);
+        try (RandomAccessFile file = new RandomAccessFile(image.toFile(), "r")) {
+            MappedDisk mapped = new MappedDisk(image.toString());
+            checkMapping(mapped, file, random);
+            checkCache(mapped, random);
+            checkPrefetcher(mapped, random);
+        } finally {
+            if (generated)
+                Files.delete(image);
+        }
+
+        if (failures != 0) {
+            System.out.printf("%d mismatches\n", failures);
+            System.exit(1);
+        }
+        System.out.println("All disc reads match");
+    }
+}
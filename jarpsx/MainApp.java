@@ -1,19 +1,55 @@
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import jarpsx.backend.CachedDisk;
 import jarpsx.backend.Emulator;
+import jarpsx.backend.Memory;
 import jarpsx.backend.component.CDROM;
+import jarpsx.backend.component.FrameRecorder;
+import jarpsx.backend.component.GpuRecorder;
 
 import jarpsx.backend.mips.*;
 import jarpsx.backend.Scheduler;
 import jarpsx.frontend.GUI;
 
+import java.awt.GraphicsEnvironment;
 import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 
 public class MainApp {
     public static void main(String[] args) {
-        Emulator emu = new Emulator();
+        // -Djarpsx.memory=offheap keeps RAM, BIOS and the scratchpad in one direct buffer instead of heap arrays
+        int memoryBacking = Memory.BACKING_HEAP;
+        if ("offheap".equals(System.getProperty("jarpsx.memory")))
+            memoryBacking = Memory.BACKING_OFF_HEAP;
+        Emulator emu = new Emulator(memoryBacking);
+        // -Djarpsx.backend=interpreter|cached|recompiler picks the CPU backend, the cached interpreter by default
+        String backendName = System.getProperty("jarpsx.backend", "cached");
+        switch (backendName) {
+        case "interpreter":
+            emu.mips.setBackend(MIPS.BACKEND_INTERPRETER);
+            break;
+        case "cached":
+            emu.mips.setBackend(MIPS.BACKEND_CACHED_INTERPRETER);
+            break;
+        case "recompiler":
+            emu.mips.setBackend(MIPS.BACKEND_RECOMPILER);
+            break;
+        default:
+            System.out.println("Unknown CPU backend " + backendName + ", expected interpreter, cached or recompiler");
+            System.exit(1);
+        }
+        // -Djarpsx.sectorCache=<MB> keeps recently read sectors in memory and reports its hit rate on exit
+        long sectorCacheMegabytes = Long.getLong("jarpsx.sectorCache", 0L);
+        if (sectorCacheMegabytes > 0) {
+            emu.disk.setCacheBudget(sectorCacheMegabytes << 20);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                CachedDisk cache = emu.disk.getCache();
+                if (cache != null)
+                    System.out.printf("Sector cache: %d hits, %d misses, %d evictions, %.1f%% hit rate\n", cache.getHits(),
+                                      cache.getMisses(), cache.getEvictions(), cache.getHitRate() * 100.0);
+            }));
+        }
         try {
             // emu.disk.loadBinary(Paths.get("").toAbsolutePath().toString() + "\\data\\games\\RidgeRacer\\ridgeracer.bin");
             // emu.disk.loadBinary(Paths.get("").toAbsolutePath().toString() + "\\data\\games\\mk2\\mk2.bin");
@@ -35,7 +71,41 @@ public class MainApp {
             System.exit(1);
         }
 
-        GUI gui = new GUI(emu);
+        // -Djarpsx.capture=path.y4m records every presented frame, raw RGB for other extensions
+        String capturePath = System.getProperty("jarpsx.capture");
+        if (capturePath != null) {
+            try {
+                FrameRecorder recorder = FrameRecorder.open(capturePath, 60);
+                emu.gpu.setFrameSink(recorder);
+                Runtime.getRuntime().addShutdownHook(new Thread(recorder::close));
+            } catch (Exception exception) {
+                System.out.println("Can't open frame capture " + capturePath + ": " + exception.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // -Djarpsx.record=path logs the GPU command stream for ReplayApp
+        String recordPath = System.getProperty("jarpsx.record");
+        if (recordPath != null) {
+            try {
+                GpuRecorder recorder = new GpuRecorder(recordPath);
+                emu.gpu.setRecorder(recorder);
+                Runtime.getRuntime().addShutdownHook(new Thread(recorder::close));
+            } catch (Exception exception) {
+                System.out.println("Can't open GPU recording " + recordPath + ": " + exception.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // -Djarpsx.gpuThread=true runs GP0 commands on a separate render thread
+        if (Boolean.getBoolean("jarpsx.gpuThread"))
+            emu.gpu.setRenderThread(true);
+        // -Djarpsx.tiledRendering=true rasterizes batched primitives in 64x64 tiles on the fork join pool
+        if (Boolean.getBoolean("jarpsx.tiledRendering"))
+            emu.gpu.setTiledRendering(true);
+
+        if (!GraphicsEnvironment.isHeadless())
+            new GUI(emu);
 
         while (true) {
             long start = System.nanoTime();
@@ -0,0 +1,135 @@
+import jarpsx.backend.Emulator;
+import jarpsx.backend.component.GPU;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/*
+ * Feeds the same random GP0/GP1 stream to the GPU in synchronous, threaded, tiled and
+ * tiled+threaded mode and compares GPUSTAT, VRAM reads and a final VRAM hash.
+ *
+ *   RenderModeCheck [commands] [seed]
+ */
+public class RenderModeCheck {
+    private static final String[] MODE_NAMES = { "sync", "threaded", "tiled", "tiled+threaded" };
+
+    private static int coordinate(Random random, int height, int width) {
+        return random.nextInt(height) << 16 | random.nextInt(width);
+    }
+
+    private static long run(boolean threaded, boolean tiled, int commands, long seed) {
+        Emulator emu = new Emulator();
+        GPU gpu = emu.gpu;
+        gpu.setRenderThread(threaded);
+        gpu.setTiledRendering(tiled);
+
+        Random random = new Random(seed);
+        int[] block = new int[0x200];
+        long hash = 0;
+        gpu.writeGp0(0xE3000000);
+        gpu.writeGp0(0xE4000000 | 511 << 10 | 1023);
+        for (int i = 0; i < commands; i++) {
+            switch (random.nextInt(9)) {
+            case 0:
+                gpu.writeGp0(0xE1000000 | random.nextInt(0x3FFF));
+                break;
+            case 1:
+                gpu.writeGp0(0x02000000 | random.nextInt(0xFFFFFF));
+                gpu.writeGp0(coordinate(random, 440, 900));
+                gpu.writeGp0(coordinate(random, 60, 60));
+                break;
+            case 2: {
+                int width = random.nextInt(20) + 1, height = random.nextInt(20) + 1;
+                gpu.writeGp0(0xA0000000);
+                gpu.writeGp0(coordinate(random, 480, 1000));
+                gpu.writeGp0(height << 16 | width);
+                for (int j = 0; j < (width * height + 1) / 2; j++)
+                    gpu.writeGp0(random.nextInt());
+                break;
+            }
+            case 3: {
+                // same upload through the DMA block path, command words included
+                int width = random.nextInt(40) + 1, height = random.nextInt(20) + 1;
+                int count = 3 + (width * height + 1) / 2;
+                block[0] = 0xA0000000;
+                block[1] = coordinate(random, 480, 980);
+                block[2] = height << 16 | width;
+                for (int j = 3; j < count; j++)
+                    block[j] = random.nextInt();
+                gpu.writeGp0Block(block, 0, count);
+                break;
+            }
+            case 4:
+                gpu.writeGp0(0xC0000000);
+                gpu.writeGp0(coordinate(random, 500, 1000));
+                gpu.writeGp0(2 << 16 | 4);
+                for (int j = 0; j < 4; j++)
+                    hash = hash * 31 + gpu.readGpuRead();
+                break;
+            case 5: {
+                int command = 0x60 | random.nextInt(4) << 3 | (random.nextBoolean() ? 4 : 0);
+                gpu.writeGp0(command << 24 | random.nextInt(0xFFFFFF));
+                gpu.writeGp0(coordinate(random, 500, 1000));
+                if ((command & 4) != 0)
+                    gpu.writeGp0(random.nextInt(0xFFFF));
+                if ((command >> 3 & 3) == 0)
+                    gpu.writeGp0(coordinate(random, 40, 40));
+                break;
+            }
+            case 6:
+                gpu.writeGp1(0x09000000 | random.nextInt(2));
+                break;
+            default: {
+                int command = 0x20 | (random.nextBoolean() ? 0x10 : 0) | (random.nextBoolean() ? 8 : 0) | (random.nextBoolean() ? 4 : 0);
+                int vertices = (command & 8) != 0 ? 4 : 3;
+                gpu.writeGp0(command << 24 | random.nextInt(0xFFFFFF));
+                for (int j = 0; j < vertices; j++) {
+                    if (j > 0 && (command & 0x10) != 0)
+                        gpu.writeGp0(random.nextInt(0xFFFFFF));
+                    gpu.writeGp0((random.nextInt(400) + 20) << 16 | (random.nextInt(700) + 20));
+                    if ((command & 4) != 0)
+                        gpu.writeGp0(random.nextInt(0xFFFF) | (j == 0 ? 0x7800 << 16 : j == 1 ? 0x0180 << 16 : 0));
+                }
+                break;
+            }
+            }
+            hash = hash * 31 + (gpu.readGpuStat() & 0x87FF);
+        }
+
+        gpu.writeGp0(0xC0000000);
+        gpu.writeGp0(0);
+        gpu.writeGp0(512 << 16 | 1024);
+        for (int i = 0; i < 512 * 512; i++)
+            hash = hash * 31 + gpu.readGpuRead();
+        gpu.setRenderThread(false);
+        return hash;
+    }
+
+    public static void main(String[] args) {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 11;
+
+        // the GPU logs unhandled commands through System.out
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        long[] hashes = {
+            run(false, false, commands, seed),
+            run(true, false, commands, seed),
+            run(false, true, commands, seed),
+            run(true, true, commands, seed),
+        };
+        boolean match = true;
+        for (int mode = 0; mode < hashes.length; mode++) {
+            out.printf("%-15s %016X\n", MODE_NAMES[mode], hashes[mode]);
+            match &= hashes[mode] == hashes[0];
+        }
+
+        if (!match) {
+            out.println("Render modes disagree");
+            System.exit(1);
+        }
+        out.println("All render modes match");
+    }
+}
@@ -0,0 +1,84 @@
+import jarpsx.backend.Emulator;
+import jarpsx.backend.component.FrameRecorder;
+import jarpsx.backend.component.GpuReplay;
+
+/*
+ * Runs a GPU recording made with -Djarpsx.record=<file> through a fresh GPU, no BIOS
+ * or CPU involved. Prints the throughput of each pass and a VRAM hash to compare
+ * renderer changes against each other.
+ *
+ *   ReplayApp <recording> [--threaded] [--tiled] [--passes N] [--capture <file>]
+ */
+public class ReplayApp {
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: ReplayApp <recording> [--threaded] [--tiled] [--passes N] [--capture <file>]");
+            System.exit(1);
+        }
+
+        boolean threaded = false;
+        boolean tiled = false;
+        int passes = 1;
+        String capturePath = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+            case "--threaded":
+                threaded = true;
+                break;
+            case "--tiled":
+                tiled = true;
+                break;
+            case "--passes":
+                passes = Integer.parseInt(args[++i]);
+                break;
+            case "--capture":
+                capturePath = args[++i];
+                break;
+            default:
+                System.out.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        GpuReplay replay = null;
+        try {
+            replay = new GpuReplay(args[0]);
+        } catch (Exception exception) {
+            System.out.println("Can't load GPU recording: " + exception.getMessage());
+            System.exit(1);
+        }
+        System.out.printf("%d frames, %d words, %.2f emulated seconds\n", replay.getFrameCount(), replay.getWordCount(),
+                          replay.getCycles() / (double)(Emulator.VBLANK_CYCLES * 60));
+
+        for (int pass = 0; pass < passes; pass++) {
+            Emulator emu = new Emulator();
+            emu.gpu.setRenderThread(threaded);
+            emu.gpu.setTiledRendering(tiled);
+            FrameRecorder capture = null;
+            if (capturePath != null && pass == 0) {
+                try {
+                    capture = FrameRecorder.open(capturePath, 60);
+                } catch (Exception exception) {
+                    System.out.println("Can't open frame capture " + capturePath + ": " + exception.getMessage());
+                    System.exit(1);
+                }
+                emu.gpu.setFrameSink(capture);
+            }
+
+            long start = System.nanoTime();
+            replay.run(emu.gpu);
+            long elapsed = System.nanoTime() - start;
+            emu.gpu.setRenderThread(false);
+            if (capture != null)
+                capture.close();
+
+            long hash = 0;
+            for (int y = 0; y < 512; y++) {
+                for (int x = 0; x < 1024; x++)
+                    hash = hash * 31 + emu.gpu.readVram16(x, y);
+            }
+            System.out.printf("Pass %d: %.1f ms, %.1f fps, %.2f Mwords/s, vram %016x\n", pass, elapsed / 1e6,
+                              replay.getFrameCount() * 1e9 / elapsed, replay.getWordCount() * 1e3 / elapsed, hash);
+        }
+    }
+}
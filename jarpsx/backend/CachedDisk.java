@@ -0,0 +1,126 @@
+package jarpsx.backend;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Keeps recently read raw sectors of another IDisk in memory, least recently used
+ * sectors are dropped once the byte budget is reached. Reads are split on sector
+ * boundaries and every sector touched counts as one hit or miss. Sectors the disk
+ * could not fully read are passed through without being cached.
+ */
+public class CachedDisk implements IDisk {
+    public static final int SECTOR_SIZE = 0x930;
+
+    private IDisk disk;
+    private int capacity;
+    private LinkedHashMap<Long, byte[]> sectors;
+    private long lastSector;
+    private byte[] lastData;
+    private byte[] spare;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public CachedDisk(IDisk disk, long budget) {
+        this.disk = disk;
+        capacity = (int)Long.max(1, Long.min(budget / SECTOR_SIZE, Integer.MAX_VALUE));
+        sectors = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                if (size() <= capacity)
+                    return false;
+                evictions++;
+                spare = eldest.getValue();
+                if (lastData == spare)
+                    lastData = null;
+                return true;
+            }
+        };
+        lastSector = -1;
+        lastData = null;
+        spare = null;
+        hits = misses = evictions = 0;
+    }
+
+    public synchronized boolean readData(byte[] readData, long offset, int size) {
+        boolean complete = true;
+        int destination = 0;
+        while (destination < size) {
+            long sector = Math.floorDiv(offset, SECTOR_SIZE);
+            int position = (int)(offset - sector * SECTOR_SIZE);
+            int count = Integer.min(size - destination, SECTOR_SIZE - position);
+
+            byte[] data = getSector(sector);
+            if (data == null) {
+                // a short last sector can still hold all of the requested bytes
+                complete &= disk.readData(spare, offset, count);
+                data = spare;
+                position = 0;
+            }
+            System.arraycopy(data, position, readData, destination, count);
+            destination += count;
+            offset += count;
+        }
+        return complete;
+    }
+
+    /* Cached or freshly read sector, null if the disk could not read all of it */
+    private byte[] getSector(long sector) {
+        if (lastData != null && lastSector == sector) {
+            hits++;
+            return lastData;
+        }
+
+        byte[] data = sectors.get(sector);
+        if (data != null) {
+            hits++;
+        } else {
+            misses++;
+            if (spare == null)
+                spare = new byte[SECTOR_SIZE];
+            if (!disk.readData(spare, sector * SECTOR_SIZE, SECTOR_SIZE))
+                return null;
+            data = spare;
+            spare = null;
+            sectors.put(sector, data);
+        }
+
+        lastSector = sector;
+        lastData = data;
+        return data;
+    }
+
+    public int getTrackCount() {
+        return disk.getTrackCount();
+    }
+
+    public Track getTrack(int number) {
+        return disk.getTrack(number);
+    }
+
+    public int getSectorCount() {
+        return disk.getSectorCount();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0.0 : hits / (double)(hits + misses);
+    }
+
+    /* Bytes currently held by cached sectors */
+    public synchronized long getSize() {
+        return (long)sectors.size() * SECTOR_SIZE;
+    }
+}
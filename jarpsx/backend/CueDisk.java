@@ -0,0 +1,231 @@
+package jarpsx.backend;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Disc described by a CUE sheet. Every BINARY file it lists is mapped once, the
+ * disc is laid out as a list of segments that either point into one of the files
+ * or stand for PREGAP/POSTGAP silence that the files do not contain. Files follow
+ * each other on the disc and INDEX times are relative to the start of their file.
+ */
+public class CueDisk implements IDisk {
+    public static final int SECTOR_SIZE = 0x930;
+
+    private class Segment {
+        int start;
+        int length;
+        MappedDisk file;
+        long fileOffset;
+    }
+
+    private class CueTrack {
+        int number;
+        boolean audio;
+        int file;
+        int index0 = -1;
+        int index1 = -1;
+        int pregap;
+        int postgap;
+    }
+
+    private List<Segment> segments;
+    private Track[] tracks;
+    private int sectorCount;
+    private int lastSegment;
+
+    public CueDisk(String path) throws IOException {
+        Path directory = Paths.get(path).toAbsolutePath().getParent();
+        List<MappedDisk> files = new ArrayList<>();
+        List<CueTrack> cueTracks = new ArrayList<>();
+        CueTrack current = null;
+
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.ISO_8859_1)) {
+            List<String> tokens = tokenize(line);
+            if (tokens.isEmpty())
+                continue;
+
+            switch (tokens.get(0).toUpperCase()) {
+            case "FILE":
+                if (tokens.size() < 3 || !tokens.get(2).equalsIgnoreCase("BINARY"))
+                    throw new RuntimeException(String.format("Unsupported CUE file entry \"%s\"", line.trim()));
+                files.add(new MappedDisk(directory.resolve(tokens.get(1)).toString()));
+                break;
+            case "TRACK": {
+                if (files.isEmpty() || tokens.size() < 3)
+                    throw new RuntimeException(String.format("CUE track without a file \"%s\"", line.trim()));
+                String mode = tokens.get(2).toUpperCase();
+                if (!mode.equals("AUDIO") && !mode.equals("MODE1/2352") && !mode.equals("MODE2/2352"))
+                    throw new RuntimeException(String.format("Unsupported CUE track mode %s", mode));
+                current = new CueTrack();
+                current.number = Integer.parseInt(tokens.get(1));
+                current.audio = mode.equals("AUDIO");
+                current.file = files.size() - 1;
+                cueTracks.add(current);
+                break;
+            }
+            case "INDEX":
+                if (current == null || tokens.size() < 3)
+                    throw new RuntimeException(String.format("CUE index outside a track \"%s\"", line.trim()));
+                switch (Integer.parseInt(tokens.get(1))) {
+                case 0: current.index0 = parseMsf(tokens.get(2)); break;
+                case 1: current.index1 = parseMsf(tokens.get(2)); break;
+                }
+                break;
+            case "PREGAP":
+                if (current != null)
+                    current.pregap = parseMsf(tokens.get(1));
+                break;
+            case "POSTGAP":
+                if (current != null)
+                    current.postgap = parseMsf(tokens.get(1));
+                break;
+            }
+        }
+
+        if (cueTracks.isEmpty())
+            throw new RuntimeException(String.format("CUE sheet %s has no tracks", path));
+        layout(files, cueTracks);
+        lastSegment = 0;
+    }
+
+    private void layout(List<MappedDisk> files, List<CueTrack> cueTracks) {
+        segments = new ArrayList<>();
+        tracks = new Track[cueTracks.size()];
+        int position = 0;
+        int trackIndex = 0;
+        for (int file = 0; file < files.size(); file++) {
+            MappedDisk disk = files.get(file);
+            int cursor = 0;
+            CueTrack previous = null;
+            for (; trackIndex < cueTracks.size() && cueTracks.get(trackIndex).file == file; trackIndex++) {
+                CueTrack track = cueTracks.get(trackIndex);
+                if (track.index1 < 0)
+                    throw new RuntimeException(String.format("CUE track %d has no INDEX 01", track.number));
+
+                int fileStart = track.index0 >= 0 ? track.index0 : track.index1;
+                position = addSegment(position, fileStart - cursor, disk, cursor);
+                if (previous != null)
+                    position = addSegment(position, previous.postgap, null, 0);
+                cursor = fileStart;
+
+                int pregapStart = position;
+                position = addSegment(position, track.pregap, null, 0);
+                tracks[trackIndex] = new Track(track.number, track.audio, pregapStart, position + track.index1 - fileStart, 0);
+                previous = track;
+            }
+
+            position = addSegment(position, disk.getSectorCount() - cursor, disk, cursor);
+            if (previous != null)
+                position = addSegment(position, previous.postgap, null, 0);
+        }
+
+        sectorCount = position;
+        for (int i = 0; i < tracks.length; i++) {
+            int end = i + 1 < tracks.length ? tracks[i + 1].pregapStart : sectorCount;
+            tracks[i].length = end - tracks[i].start;
+        }
+    }
+
+    private int addSegment(int position, int length, MappedDisk file, int fileSector) {
+        if (length <= 0)
+            return position;
+        Segment segment = new Segment();
+        segment.start = position;
+        segment.length = length;
+        segment.file = file;
+        segment.fileOffset = (long)fileSector * SECTOR_SIZE;
+        segments.add(segment);
+        return position + length;
+    }
+
+    private static int parseMsf(String msf) {
+        String[] fields = msf.split(":");
+        if (fields.length != 3)
+            throw new RuntimeException(String.format("Bad CUE time %s", msf));
+        return (Integer.parseInt(fields[0]) * 60 + Integer.parseInt(fields[1])) * 75 + Integer.parseInt(fields[2]);
+    }
+
+    /* Splits on whitespace, double quotes group a file name with spaces */
+    private static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                int end = line.indexOf('"', i + 1);
+                if (end < 0)
+                    end = line.length();
+                tokens.add(line.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < line.length() && !Character.isWhitespace(line.charAt(end)))
+                    end++;
+                tokens.add(line.substring(i, end));
+                i = end;
+            }
+        }
+        return tokens;
+    }
+
+    private Segment findSegment(long sector) {
+        Segment segment = segments.get(lastSegment);
+        if (sector >= segment.start && sector < segment.start + segment.length)
+            return segment;
+        for (int i = 0; i < segments.size(); i++) {
+            segment = segments.get(i);
+            if (sector >= segment.start && sector < segment.start + segment.length) {
+                lastSegment = i;
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /* Gaps read as zero, false if part of the range lies outside the program area */
+    public synchronized boolean readData(byte[] readData, long offset, int size) {
+        boolean complete = true;
+        int destination = 0;
+        while (destination < size) {
+            long sector = Math.floorDiv(offset, SECTOR_SIZE);
+            Segment segment = findSegment(sector);
+            int count;
+            if (segment == null) {
+                count = (int)Long.min(size - destination, (sector + 1) * SECTOR_SIZE - offset);
+                Arrays.fill(readData, destination, destination + count, (byte)0);
+                complete = false;
+            } else {
+                long segmentOffset = offset - (long)segment.start * SECTOR_SIZE;
+                count = (int)Long.min(size - destination, (long)segment.length * SECTOR_SIZE - segmentOffset);
+                if (segment.file != null)
+                    complete &= segment.file.readData(readData, destination, segment.fileOffset + segmentOffset, count);
+                else
+                    Arrays.fill(readData, destination, destination + count, (byte)0);
+            }
+            destination += count;
+            offset += count;
+        }
+        return complete;
+    }
+
+    public int getTrackCount() {
+        return tracks.length;
+    }
+
+    public Track getTrack(int number) {
+        return number >= 1 && number <= tracks.length ? tracks[number - 1] : null;
+    }
+
+    public int getSectorCount() {
+        return sectorCount;
+    }
+}
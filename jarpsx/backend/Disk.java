@@ -1,21 +1,36 @@
 package jarpsx.backend;
 
-import java.io.RandomAccessFile;
 import jarpsx.backend.IDisk;
 
 public class Disk implements IDisk {
     private String currentDirectoryPath;
-    private RandomAccessFile file;
+    private IDisk image;
+    private long cacheBudget;
+    private CachedDisk cache;
     
     public Disk() {
         currentDirectoryPath = "";
-        file = null;
+        image = null;
+        cacheBudget = 0;
+        cache = null;
     }
 
+    /* Bytes of sectors kept in an LRU cache for images loaded from now on, 0 disables it */
+    public void setCacheBudget(long cacheBudget) {
+        this.cacheBudget = cacheBudget;
+    }
+
+    public CachedDisk getCache() {
+        return cache;
+    }
+
+    /* Raw .bin images, or a .cue sheet with the files it lists */
     public boolean loadBinary(String path) {
         try {
-            RandomAccessFile file = new RandomAccessFile(path, "r");
-            this.file = file;
+            image = path.toLowerCase().endsWith(".cue") ? new CueDisk(path) : new MappedDisk(path);
+            cache = null;
+            if (cacheBudget > 0)
+                image = cache = new CachedDisk(image, cacheBudget);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -25,15 +40,20 @@ public class Disk implements IDisk {
     }
 
     public boolean readData(byte[] readData, long offset, int size) {
-        if (file == null)
+        if (image == null)
             return false;
+        return image.readData(readData, offset, size);
+    }
 
-        try {
-            file.seek(offset);
-            file.read(readData, 0, size);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return true;
+    public int getTrackCount() {
+        return image != null ? image.getTrackCount() : 0;
+    }
+
+    public Track getTrack(int number) {
+        return image != null ? image.getTrack(number) : null;
+    }
+
+    public int getSectorCount() {
+        return image != null ? image.getSectorCount() : 0;
     }
-}
\ No newline at end of file
+}
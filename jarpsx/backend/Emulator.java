@@ -33,28 +33,46 @@ public class Emulator {
     public Disk disk;
     public PSXController psxController;
     private boolean error;
+    public static final int VBLANK_CYCLES = 345000;
+    private long nextVblankCycles;
+    private int vblankEvent;
+    private int breakDispatchEvent;
     public Emulator() {
+        this(Memory.BACKING_HEAP);
+    }
+
+    public Emulator(int memoryBacking) {
         scheduler = new Scheduler(this);
-        memory = new Memory(this);
+        memory = new Memory(this, memoryBacking);
         mips = new MIPS(this);
         debugger = new Debugger(this);
         interruptController = new InterruptController(this);
         timer = new Timer(this);
         dma = new DMA(this);
+        disk = new Disk();
         cdrom = new CDROM(this);
         gpu = new GPU(this);
         peripheral = new Peripheral(this);
         mdec = new MDEC(this);
+        spu = new SPU(this);
         stats = new Stats();
-        disk = new Disk();
 
         psxController = new PSXController();
         stats.microsecondsRanPerFrame = stats.microsecondsRan = 0;
         scheduler.registerEventCallback(Scheduler.EVENT_BREAK_DISPATCH, (userdata) -> {
-            scheduler.schedule(20000, Scheduler.EVENT_BREAK_DISPATCH, null);
+            scheduler.schedule(breakDispatchEvent, scheduler.getCyclesElapsed() + 20000);
         });
-        
-        scheduler.schedule(20000, Scheduler.EVENT_BREAK_DISPATCH, null);
+        scheduler.registerEventCallback(Scheduler.EVENT_VBLANK, (userdata) -> {
+            interruptController.service(InterruptController.IRQ_VBLANK);
+            nextVblankCycles += VBLANK_CYCLES;
+            scheduler.schedule(vblankEvent, nextVblankCycles);
+        });
+
+        nextVblankCycles = VBLANK_CYCLES;
+        breakDispatchEvent = scheduler.createEvent(Scheduler.EVENT_BREAK_DISPATCH, null);
+        vblankEvent = scheduler.createEvent(Scheduler.EVENT_VBLANK, null);
+        scheduler.schedule(breakDispatchEvent, 20000);
+        scheduler.schedule(vblankEvent, nextVblankCycles);
 
         error = false;
     }
@@ -85,7 +103,7 @@ public class Emulator {
             if (status == -1)
                 break;
 
-            Memory.Utility.copyMemory(memory.getBiosData(), readBytes, buf, 0, status);
+            memory.copyToBios(readBytes, buf, 0, status);
             readBytes += status;
             if (readBytes >= 524288)
                 break;
@@ -93,6 +111,7 @@ public class Emulator {
         }
 
         reader.close();
+        mips.getBlockCache().invalidateAll();
     }
 
     private static class ByteArray {
@@ -139,10 +158,11 @@ public class Emulator {
             if (status == -1)
                 break;
             
-            Memory.Utility.copyMemory(memory.getRamData(), (ramDestinationAddress & 0x1FFFFF) + readBytes, buffer, 0, status);
+            memory.copyToRam((ramDestinationAddress & 0x1FFFFF) + readBytes, buffer, 0, status);
             readBytes += status;
         }
 
+        mips.getBlockCache().invalidateAll();
         mips.PC = initialPC;
         mips.branchDelaySet = false;
 
@@ -157,7 +177,7 @@ public class Emulator {
     public void dumpMemory() {
         try {
             FileOutputStream out = new FileOutputStream(Paths.get("").toAbsolutePath().toString() + "\\ram.dump");
-            out.write(memory.getRamData());
+            out.getChannel().write(memory.getRamBuffer());
             out.close();
         } catch (Exception e) {
             
@@ -165,16 +185,13 @@ public class Emulator {
     }
     
     public void runFor(int cycles) {
-        int _cycles = 0;
         try {
-            for (int i = 0; i < cycles; i++) {
-                mips.step();
-                timer.step();
-                peripheral.step(1);
-                cdrom.step(1);
-                if ((mips.getCyclesElapsed() % 345000) == 0) {
-                    interruptController.service(InterruptController.IRQ_VBLANK);
-                }
+            long target = mips.getCyclesElapsed() + cycles;
+            while (mips.getCyclesElapsed() < target) {
+                // Run the CPU up to the next event, devices only do work when their events fire
+                while (mips.getCyclesElapsed() < target && mips.getCyclesElapsed() < scheduler.getEarlyEventCycles())
+                    mips.step();
+                scheduler.runEvents();
             }
 
             gpu.present();
@@ -2,4 +2,21 @@ package jarpsx.backend;
 
 public interface IDisk {
     public boolean readData(byte[] readData, long offset, int size);
-}
\ No newline at end of file
+
+    /* Tracks are numbered from 1, getTrack returns null outside 1 to getTrackCount */
+    public int getTrackCount();
+    public Track getTrack(int number);
+
+    /* Sector where the lead-out starts */
+    public int getSectorCount();
+
+    /* Track whose pregap or data holds lba, null outside the program area */
+    public default Track findTrack(int lba) {
+        for (int i = getTrackCount(); i >= 1; i--) {
+            Track track = getTrack(i);
+            if (lba >= track.pregapStart)
+                return lba < track.start + track.length ? track : null;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,84 @@
+package jarpsx.backend;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+ * Disc image mapped into memory, reads are copies out of the mapping instead of a
+ * seek and read per call. A single mapping is limited to 2GB so images are mapped
+ * in CHUNK_SIZE pieces and reads crossing a boundary are split. Only absolute gets
+ * are used, the buffers are safe to read from several threads.
+ */
+public class MappedDisk implements IDisk {
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+    public static final int SECTOR_SIZE = 0x930;
+
+    private MappedByteBuffer[] chunks;
+    private long length;
+    private Track track;
+
+    public MappedDisk(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            length = channel.size();
+            chunks = new MappedByteBuffer[(int)((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long)i << CHUNK_SHIFT;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Long.min(CHUNK_SIZE, length - start));
+            }
+        }
+        track = new Track(1, false, 0, 0, getSectorCount());
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /* A bare image is a single data track */
+    public int getTrackCount() {
+        return 1;
+    }
+
+    public Track getTrack(int number) {
+        return number == 1 ? track : null;
+    }
+
+    public int getSectorCount() {
+        return (int)(length / SECTOR_SIZE);
+    }
+
+    public boolean readData(byte[] readData, long offset, int size) {
+        return readData(readData, 0, offset, size);
+    }
+
+    /* Bytes outside the image read as zero, false unless the whole range was inside it */
+    public boolean readData(byte[] readData, int readOffset, long offset, int size) {
+        int destination = readOffset;
+        int end = readOffset + size;
+        boolean complete = offset >= 0;
+        if (offset < 0) {
+            int count = (int)Long.min(size, -offset);
+            Arrays.fill(readData, destination, destination + count, (byte)0);
+            destination += count;
+            offset += count;
+        }
+
+        while (destination < end && offset < length) {
+            MappedByteBuffer chunk = chunks[(int)(offset >>> CHUNK_SHIFT)];
+            int position = (int)(offset & (CHUNK_SIZE - 1));
+            int count = Integer.min(end - destination, chunk.limit() - position);
+            chunk.get(position, readData, destination, count);
+            destination += count;
+            offset += count;
+        }
+
+        if (destination == end)
+            return complete;
+        Arrays.fill(readData, destination, end, (byte)0);
+        return false;
+    }
+}
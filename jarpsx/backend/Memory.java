@@ -1,16 +1,45 @@
 package jarpsx.backend;
 
 import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 
 import jarpsx.backend.Emulator;
 import jarpsx.backend.PSXIntegerConstants;
 import jarpsx.backend.mips.Disassembler;
-import jarpsx.backend.component.*;
+import jarpsx.backend.mips.BlockCache;
 
 /*
- * Memory is implemented as software fastmem
+ * Memory is implemented as software fastmem. RAM and BIOS are reached through a
+ * 4 KB page table pointing straight at their backing arrays, everything else
+ * (null entries) goes through the 64 KB page executors.
+ *
+ * With BACKING_OFF_HEAP, RAM, BIOS and the scratchpad share one direct buffer
+ * instead and the page table holds offsets into it (-1 when not mapped).
  */
 public class Memory {
+    public static final int BACKING_HEAP = 0;
+    public static final int BACKING_OFF_HEAP = 1;
+
+    public static final int FASTMEM_PAGE_SHIFT = 12;
+    private static final int FASTMEM_PAGE_MASK = (1 << FASTMEM_PAGE_SHIFT) - 1;
+    private static final int FASTMEM_PAGE_COUNT = 1 << (32 - FASTMEM_PAGE_SHIFT);
+
+    // Off-heap layout, RAM stays at 0 so buffer offsets of writable pages are RAM offsets
+    private static final int OFF_HEAP_RAM_OFFSET = 0x000000;
+    private static final int OFF_HEAP_BIOS_OFFSET = 0x200000;
+    private static final int OFF_HEAP_SCRATCHPAD_OFFSET = 0x280000;
+    private static final int OFF_HEAP_SIZE = 0x280400;
+
+    private static final VarHandle SHORT_VIEW = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle SHORT_BUFFER_VIEW = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_BUFFER_VIEW = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
     // I/O
     // Memory control
     public static final int EXPANSION_1_BASE_ADDRESS_OFFSET = 0x1000;
@@ -86,6 +115,25 @@ public class Memory {
         public void writeInt(int offset, int value);
     }
 
+    /*
+     * I/O registers are dispatched through one table per access width, indexed by
+     * offset from IO_BASE_OFFSET. Components install their handlers on construction.
+     * Byte and halfword write values are zero extended, read results are truncated.
+     */
+    public interface IOReadHandler {
+        public int read(int offset);
+    }
+
+    public interface IOWriteHandler {
+        public void write(int offset, int value);
+    }
+
+    public static final int IO_BYTE = 1;
+    public static final int IO_SHORT = 2;
+    public static final int IO_INT = 4;
+    private static final int IO_BASE_OFFSET = 0x1000;
+    private static final int IO_SIZE = 0x2000;
+
     public class Utility {
         static void setMemory(byte[] data, int c, int size, int offset) {
             for (int i = 0; i < size; i++) {
@@ -103,8 +151,8 @@ public class Memory {
     private class RAMDirectAccess implements SoftwarePageExecutor {
         public byte[] ram;
 
-        RAMDirectAccess() {
-            ram = new byte[PSXIntegerConstants.RAM_SIZE.getInt()];
+        RAMDirectAccess(byte[] ram) {
+            this.ram = ram;
         }
 
         public int getAddressMask() {
@@ -116,36 +164,37 @@ public class Memory {
         }
 
         public short readShort(int offset) {
-            int result;
-            result = ((int)readByte(offset) & 0xFF) | (int)readByte(offset + 1) << 8;
-            return (short) result;
+            return (short)SHORT_VIEW.get(ram, offset);
         }
 
         public int readInt(int offset) {
-            int result = ((int)readShort(offset) & 0xFFFF) | (int)readShort(offset + 2) << 16;
-            return result;
+            return (int)INT_VIEW.get(ram, offset);
         }
 
         public void writeByte(int offset, byte value) {
             ram[offset] = value;
+            if (blockCache != null)
+                blockCache.invalidate(offset);
         }
 
         public void writeShort(int offset, short value) {
-            writeByte(offset, (byte)(value & 0xFF));
-            writeByte(offset + 1, (byte)(value >>> 8));
+            SHORT_VIEW.set(ram, offset, value);
+            if (blockCache != null)
+                blockCache.invalidate(offset);
         }
 
         public void writeInt(int offset, int value) {
-            writeShort(offset, (short)(value & 0xFFFF));
-            writeShort(offset + 2, (short)((value >>> 16) & 0xFFFF));
+            INT_VIEW.set(ram, offset, value);
+            if (blockCache != null)
+                blockCache.invalidate(offset);
         }
     }
     
     private class BIOSAccess implements SoftwarePageExecutor {
         public byte[] bios;
 
-        BIOSAccess() {
-            bios = new byte[PSXIntegerConstants.BIOS_SIZE.getInt()];
+        BIOSAccess(byte[] bios) {
+            this.bios = bios;
         }
 
         public int getAddressMask() {
@@ -157,14 +206,11 @@ public class Memory {
         }
 
         public short readShort(int offset) {
-            int result;
-            result = ((int)readByte(offset) & 0xFF) | (int)readByte(offset + 1) << 8;
-            return (short) result;
+            return (short)SHORT_VIEW.get(bios, offset);
         }
 
         public int readInt(int offset) {
-            int result = ((int)readShort(offset) & 0xFFFF) | (int)readShort(offset + 2) << 16;
-            return result;
+            return (int)INT_VIEW.get(bios, offset);
         }
 
         public void writeByte(int offset, byte value) {
@@ -181,15 +227,10 @@ public class Memory {
     }
     
     private class MMIOAccessPage implements SoftwarePageExecutor {
-        private Emulator emulator;
-        private byte[] scratchpad;
+        private ByteBuffer scratchpad;
         
-        MMIOAccessPage() {
-            scratchpad = new byte[1024];
-        }
-
-        public void setEmulator(Emulator emulator) {
-            this.emulator = emulator;
+        MMIOAccessPage(ByteBuffer scratchpad) {
+            this.scratchpad = scratchpad;
         }
 
         public int getAddressMask() {
@@ -198,31 +239,17 @@ public class Memory {
 
         public byte readByte(int offset) {
             if (offset >= 0 && offset < 0x400) {
-                return scratchpad[offset];
+                return scratchpad.get(offset);
             }
 
-            if (offset >= 0x1040 && offset <= 0x104E) {
-                switch (offset) {
-                case 0x1040: return (byte)emulator.peripheral.readRxData();
-                }
-            }
-
-            switch (offset) {
-            case 0x10F6: // DICR
-                return (byte)((emulator.dma.DICR >>> 16) & 0xFF);
-            case CDROM_HINT_OFFSET:
-            case CDROM_RDDATA_OFFSET:
-            case CDROM_RESULT_OFFSET:
-            case CDROM_HSTS_OFFSET:
-                return (byte)emulator.cdrom.read(offset - 0x1800);
+            IOReadHandler handler = getIOHandler(ioReadHandlers[IO_BYTE >>> 1], offset);
+            if (handler != null) {
+                countIORead(offset);
+                return (byte)handler.read(offset);
             }
 
             throw new RuntimeException(String.format("Unimplemented readByte I/O offset 0x%04X", offset));
         }
-        
-        static int _0x1DA6;
-        static int _0x1DA8;
-        static int _0x1DAA;
 
         public short readShort(int offset) {
             if (offset >= 0 && offset < 0x400) {
@@ -231,41 +258,10 @@ public class Memory {
                 return (short) result;
             }
 
-            if (offset >= 0x1C00 && offset <= 0x1FFF) {
-                switch (offset) {
-                case 0x1DA6:
-                    return (short)_0x1DA6;
-                case 0x1DA8:
-                    return (short)_0x1DA8;
-                case 0x1DAA:
-                    return (short)_0x1DAA;
-                }
-                return 0;
-            }
-
-            if (offset >= 0x1040 && offset <= 0x104E) {
-                switch (offset) {
-                case 0x1040: return (short)emulator.peripheral.readRxData();
-                case 0x1044: return (short)emulator.peripheral.readStat();
-                case 0x1048: return (short)emulator.peripheral.readMode();
-                case 0x104A: return (short)emulator.peripheral.readCtrl();
-                case 0x104E: return (short)emulator.peripheral.readBaudRate();
-                }
-            }
-
-            if (offset >= 0x1100 && offset <= 0x1108 + 0x20) {
-                Timer.TimerData data = emulator.timer.getTimer((offset - 0x1100) / 0x10);
-                switch (offset & 0xF) {
-                case 0: return (short)data.readValue();
-                case 4: return (short)data.readMode();
-                case 8: return (short)data.readTarget();
-                }
-            }
-
-
-            switch (offset) {
-            case I_STAT_OFFSET: return (short)emulator.interruptController.readStatus();
-            case I_MASK_OFFSET: return (short)emulator.interruptController.readMask();
+            IOReadHandler handler = getIOHandler(ioReadHandlers[IO_SHORT >>> 1], offset);
+            if (handler != null) {
+                countIORead(offset);
+                return (short)handler.read(offset);
             }
 
             throw new RuntimeException(String.format("Unimplemented readShort I/O offset 0x%04X", offset));
@@ -277,53 +273,10 @@ public class Memory {
                 return result;
             }
 
-            if (offset >= 0x1C00 && offset <= 0x1FFF) {
-                System.out.printf("Unimplemented SPU readInt 0x1F80%04X", offset);
-                return 0;
-            }
-
-            if (offset >= 0x1080 && offset <= 0x10EF) {
-                DMA.Channel channel = emulator.dma.getChannel((offset - 0x1080) / 0x10);
-
-                switch (offset & 0xF) {
-                case 0: return channel.getBaseAddress();
-                case 4: return channel.getBlockControl();
-                case 8: return channel.getChannelControl();
-                }
-            }
-
-            if (offset >= 0x1100 && offset <= 0x1108 + 0x20) {
-                Timer.TimerData data = emulator.timer.getTimer((offset - 0x1100) / 0x10);
-                switch (offset & 0xF) {
-                case 0: return data.readValue();
-                case 4: return data.readMode();
-                case 8: return data.readTarget();
-                }
-            }
-            
-            switch (offset) {
-            case MDEC_STATUS_OFFSET: return emulator.mdec.readStatusRegister();
-            case EXPANSION_2_DELAY_OFFSET:
-                return 0;
-            case EXPANSION_1_BASE_ADDRESS_OFFSET:
-            case EXPANSION_2_BASE_ADDRESS_OFFSET:
-            case EXPANSION_1_DELAY_OFFSET:
-            case EXPANSION_3_DELAY_OFFSET:
-            case BIOS_ROM_DELAY_OFFSET:
-            case SPU_DELAY_OFFSET:
-            case CDROM_DELAY_OFFSET:
-            case COMMON_DELAY_OFFSET:
-            case RAM_SIZE_OFFSET:
-                System.out.printf("Unimplemented MEMORY CONTROL readInt 0x1F80%04X\n", offset);
-                return 0;
-            case I_STAT_OFFSET: return emulator.interruptController.readStatus();
-            case I_MASK_OFFSET: return emulator.interruptController.readMask();
-            case DPCR_OFFSET: return emulator.dma.getDPCR();
-            case DICR_OFFSET: return emulator.dma.getDICR();
-            case GPUREAD_OFFSET:
-                return emulator.gpu.readGpuRead();
-            case GPUSTAT_OFFSET:
-                return emulator.gpu.readGpuStat();
+            IOReadHandler handler = getIOHandler(ioReadHandlers[IO_INT >>> 1], offset);
+            if (handler != null) {
+                countIORead(offset);
+                return handler.read(offset);
             }
 
             throw new RuntimeException(String.format("Unimplemented readInt I/O offset 0x%04X", offset));
@@ -331,31 +284,16 @@ public class Memory {
         
         public void writeByte(int offset, byte value) {
             if (offset >= 0 && offset < 0x400) {
-                scratchpad[offset] = value;
+                scratchpad.put(offset, value);
                 return;
             }
 
-            if (offset >= 0x1040 && offset <= 0x104E) {
-                switch (offset) {
-                case 0x1040:
-                    emulator.peripheral.writeTxData((int)value & 0xFF);
-                    return;
-                }
-            }
-
-            switch (offset) {
-            case 0x2041: // POST
-                return;
-            case 0x10F6: // DICR
-                emulator.dma.setDICR(((int) value & 0xFF) << 16);
-                return;
-            case CDROM_ADDRESS_OFFSET:
-            case CDROM_COMMAND_OFFSET:
-            case CDROM_PARAMETER_OFFSET:
-            case CDROM_HCHPCTL_OFFSET:
-                emulator.cdrom.write(offset - 0x1800, (int)value & 0xFF);
+            IOWriteHandler handler = getIOHandler(ioWriteHandlers[IO_BYTE >>> 1], offset);
+            if (handler != null) {
+                handler.write(offset, (int)value & 0xFF);
                 return;
             }
+
             throw new RuntimeException(String.format("Unimplemented writeByte I/O offset 0x%04X=%02X", offset, value & 0xFF));
         }
 
@@ -366,55 +304,9 @@ public class Memory {
                 return;
             }
 
-            if (offset >= 0x1040 && offset <= 0x104E) {
-                switch (offset) {
-                case 0x1040: emulator.peripheral.writeTxData((int)value & 0xFFFF); return;
-                case 0x1048: emulator.peripheral.writeMode((int)value & 0xFFFF); return;
-                case 0x104A: emulator.peripheral.writeCtrl((int)value & 0xFFFF); return;
-                case 0x104E: emulator.peripheral.writeBaudRate((int)value & 0xFFFF); return;
-                }
-            }
-
-            if (offset >= 0x1100 && offset <= 0x1108 + 0x20) {
-                Timer.TimerData data = emulator.timer.getTimer((offset - 0x1100) / 0x10);
-                switch (offset & 0xF) {
-                case 0:
-                    data.writeValue((int)value & 0xFFFF);
-                    return;
-                case 4:
-                    data.writeMode((int)value & 0xFFFF);
-                    return;
-                case 8:
-                    data.writeTarget((int)value & 0xFFFF);
-                    return;
-                }
-            }
-
-            if (offset >= 0x1C00 && offset <= 0x1FFF) {
-                switch (offset) {
-                case 0x1DA6:
-                    _0x1DA6 = value;
-                    break;
-                case 0x1DA8:
-                    _0x1DA8 = value;
-                    break;
-                case 0x1DAA:
-                    _0x1DAA = value;
-                    break;
-                }
-
-                // System.out.printf("Unimplemented SPU writeShort 0x1F80%04X=%04X\n", offset, value);
-                return;
-            }
-
-            switch (offset) {
-            case I_STAT_OFFSET:
-                emulator.interruptController.writeStatus(emulator.interruptController.readStatus() & value);
-                emulator.interruptController.acknowledge();
-                return;
-            case I_MASK_OFFSET:
-                emulator.interruptController.writeMask((int)value & 0xFFFF);
-                emulator.interruptController.acknowledge();
+            IOWriteHandler handler = getIOHandler(ioWriteHandlers[IO_SHORT >>> 1], offset);
+            if (handler != null) {
+                handler.write(offset, (int)value & 0xFFFF);
                 return;
             }
 
@@ -428,75 +320,10 @@ public class Memory {
                 return;
             }
 
-            if (offset >= 0x1080 && offset <= 0x10EF) {
-                int channelIndex = (offset - 0x1080) / 0x10;
-                DMA.Channel channel = emulator.dma.getChannel(channelIndex);
-
-                switch (offset & 0xF) {
-                case 0:
-                    channel.setBaseAddress(value);
-                    break;
-                case 4:
-                    channel.setBlockControl(value);
-                    break;
-                case 8:
-                    channel.setChannelControl(value);
-                    if ((value & (1 << 28)) != 0 || (value & (1 << 24)) != 0)
-                        emulator.dma.runChannel(channelIndex);
-                    break;
-                }
-                return;
-            }
-
-            if (offset >= 0x1100 && offset <= 0x1108 + 0x20) {
-                Timer.TimerData data = emulator.timer.getTimer((offset - 0x1100) / 0x10);
-                switch (offset & 0xF) {
-                case 0:
-                    data.writeValue((int)value & 0xFFFF);
-                    return;
-                case 4:
-                    data.writeMode((int)value & 0xFFFF);
-                    return;
-                case 8:
-                    data.writeTarget((int)value & 0xFFFF);
-                    return;
-                }
-            }
-
-            switch (offset) {
-            case MDEC_COMMAND_OFFSET:
-                emulator.mdec.writeDataWord(value);
-                return;
-            case MDEC_CONTROL_OFFSET:
-                emulator.mdec.writeMdecControl(value);
-                return;
-            case EXPANSION_1_BASE_ADDRESS_OFFSET:
-            case EXPANSION_2_BASE_ADDRESS_OFFSET:
-            case EXPANSION_1_DELAY_OFFSET:
-            case EXPANSION_3_DELAY_OFFSET:
-            case EXPANSION_2_DELAY_OFFSET:
-            case BIOS_ROM_DELAY_OFFSET:
-            case SPU_DELAY_OFFSET:
-            case CDROM_DELAY_OFFSET:
-            case COMMON_DELAY_OFFSET:
-            case RAM_SIZE_OFFSET:
-                // System.out.printf("Unimplemented MEMORY CONTROL writeInt 0x1F80%04X = %08X\n", offset, value);
-                return;
-
-            // Interrupts
-            case I_STAT_OFFSET:
-                emulator.interruptController.writeStatus(emulator.interruptController.readStatus() & value);
-                emulator.interruptController.acknowledge();
-                return;
-            case I_MASK_OFFSET:
-                emulator.interruptController.writeMask((int)value & 0xFFFF);
-                emulator.interruptController.acknowledge();
+            IOWriteHandler handler = getIOHandler(ioWriteHandlers[IO_INT >>> 1], offset);
+            if (handler != null) {
+                handler.write(offset, value);
                 return;
-
-            case DPCR_OFFSET: emulator.dma.setDPCR(value); return;
-            case DICR_OFFSET: emulator.dma.setDICR(value); return;
-            case GP0_COMMAND_OFFSET: emulator.gpu.writeGp0(value); return;
-            case GP1_COMMAND_OFFSET: emulator.gpu.writeGp1(value); return;
             }
 
             throw new RuntimeException(String.format("Unimplemented writeInt I/O offset 0x%04X=%08X", offset, value));
@@ -572,18 +399,51 @@ public class Memory {
     }
 
     private SoftwarePageExecutor[] pageExecutor;
+    private byte[][] fastmemRead;
+    private byte[][] fastmemWrite;
+    private ByteBuffer offHeap;
+    private IntBuffer ramInts;
+    private int[] offHeapRead;
+    private int[] offHeapWrite;
     private RAMDirectAccess ramDirectAccess;
     private MMIOAccessPage mmioAccess;
+    private IOReadHandler[][] ioReadHandlers;
+    private IOWriteHandler[][] ioWriteHandlers;
+    private boolean[] ioStable;
+    private long volatileIOReads;
     private BIOSAccess biosAccess;
     private CacheControl cacheControl;
     private ExpansionRegion1 expansionRegion1;
+    private BlockCache blockCache;
     private Emulator emulator;
 
-    public Memory(Emulator emu) {
+    public Memory(Emulator emu, int backing) {
+        int ramSize = PSXIntegerConstants.RAM_SIZE.getInt();
+        int biosSize = PSXIntegerConstants.BIOS_SIZE.getInt();
+
         pageExecutor = new SoftwarePageExecutor[0x10000];
-        ramDirectAccess = new RAMDirectAccess();
-        mmioAccess = new MMIOAccessPage();
-        biosAccess = new BIOSAccess();
+        ioReadHandlers = new IOReadHandler[3][IO_SIZE];
+        ioWriteHandlers = new IOWriteHandler[3][IO_SIZE];
+        ioStable = new boolean[IO_SIZE];
+        volatileIOReads = 0L;
+        if (backing == BACKING_OFF_HEAP) {
+            offHeap = ByteBuffer.allocateDirect(OFF_HEAP_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            offHeapRead = new int[FASTMEM_PAGE_COUNT];
+            offHeapWrite = new int[FASTMEM_PAGE_COUNT];
+            Arrays.fill(offHeapRead, -1);
+            Arrays.fill(offHeapWrite, -1);
+            // RAM and BIOS pages are always resolved through offHeapRead/offHeapWrite, their executors never touch an array
+            ramDirectAccess = new RAMDirectAccess(null);
+            biosAccess = new BIOSAccess(null);
+            mmioAccess = new MMIOAccessPage(offHeap.slice(OFF_HEAP_SCRATCHPAD_OFFSET, 1024));
+        } else {
+            fastmemRead = new byte[FASTMEM_PAGE_COUNT][];
+            fastmemWrite = new byte[FASTMEM_PAGE_COUNT][];
+            ramDirectAccess = new RAMDirectAccess(new byte[ramSize]);
+            biosAccess = new BIOSAccess(new byte[biosSize]);
+            mmioAccess = new MMIOAccessPage(ByteBuffer.allocate(1024));
+        }
+        ramInts = getRamBuffer().asIntBuffer();
         cacheControl = new CacheControl();
         expansionRegion1 = new ExpansionRegion1();
 
@@ -612,11 +472,210 @@ public class Memory {
             pageExecutor[i + 0xBFC0] = biosAccess;
         }
 
+        // KUSEG, KSEG0 and KSEG1 mirror the same storage
+        int[] segments = { 0x00000000, 0x80000000, 0xA0000000 };
+        for (int segment : segments) {
+            if (offHeap != null) {
+                mapOffHeap(segment, OFF_HEAP_RAM_OFFSET, ramSize, true);
+                mapOffHeap(segment + 0x1FC00000, OFF_HEAP_BIOS_OFFSET, biosSize, false);
+            } else {
+                // Backing arrays are power of two sized so a page resolves with address & (length - 1)
+                mapFastmem(segment, ramDirectAccess.ram, true);
+                mapFastmem(segment + 0x1FC00000, biosAccess.bios, false);
+            }
+        }
+
+        // Memory control registers are accepted but have no effect
+        int[] memoryControl = {
+            EXPANSION_1_BASE_ADDRESS_OFFSET, EXPANSION_2_BASE_ADDRESS_OFFSET, EXPANSION_1_DELAY_OFFSET,
+            EXPANSION_3_DELAY_OFFSET, BIOS_ROM_DELAY_OFFSET, SPU_DELAY_OFFSET, CDROM_DELAY_OFFSET,
+            COMMON_DELAY_OFFSET, RAM_SIZE_OFFSET
+        };
+        for (int offset : memoryControl) {
+            mapIORead(IO_INT, offset, (register) -> {
+                System.out.printf("Unimplemented MEMORY CONTROL readInt 0x1F80%04X\n", register);
+                return 0;
+            });
+            mapIOWrite(IO_INT, offset, (register, value) -> {});
+        }
+        mapIORead(IO_INT, EXPANSION_2_DELAY_OFFSET, (register) -> 0);
+        mapIOWrite(IO_INT, EXPANSION_2_DELAY_OFFSET, (register, value) -> {});
+        mapIOWrite(IO_BYTE, 0x2041, (register, value) -> {}); // POST
+
         emulator = emu;
-        mmioAccess.setEmulator(emu);
+    }
+
+    public void mapIORead(int width, int offset, IOReadHandler handler) {
+        ioReadHandlers[getIOTableIndex(width, offset)][offset - IO_BASE_OFFSET] = handler;
+    }
+
+    public void mapIOWrite(int width, int offset, IOWriteHandler handler) {
+        ioWriteHandlers[getIOTableIndex(width, offset)][offset - IO_BASE_OFFSET] = handler;
+    }
+
+    /* Reads of this register only change after a CPU write or a scheduler event, so polling it can be fast-forwarded */
+    public void markIOStable(int offset) {
+        getIOTableIndex(IO_BYTE, offset);
+        ioStable[offset - IO_BASE_OFFSET] = true;
+    }
+
+    /* Number of I/O reads whose result may change without a scheduler event, e.g. timer counters or FIFOs */
+    public long getVolatileReadCount() {
+        return volatileIOReads;
+    }
+
+    private void countIORead(int offset) {
+        if (!ioStable[offset - IO_BASE_OFFSET])
+            volatileIOReads++;
+    }
+
+    private static int getIOTableIndex(int width, int offset) {
+        if ((width != IO_BYTE && width != IO_SHORT && width != IO_INT) || offset < IO_BASE_OFFSET || offset >= IO_BASE_OFFSET + IO_SIZE)
+            throw new RuntimeException(String.format("Invalid I/O mapping width %d offset 0x%04X", width, offset));
+        return width >>> 1;
+    }
+
+    private static <T> T getIOHandler(T[] table, int offset) {
+        int index = offset - IO_BASE_OFFSET;
+        if (index < 0 || index >= IO_SIZE)
+            return null;
+        return table[index];
+    }
+
+    private void mapFastmem(int baseAddress, byte[] data, boolean writable) {
+        int firstPage = baseAddress >>> FASTMEM_PAGE_SHIFT;
+        for (int i = 0; i < data.length >>> FASTMEM_PAGE_SHIFT; i++) {
+            fastmemRead[firstPage + i] = data;
+            fastmemWrite[firstPage + i] = writable ? data : null;
+        }
+    }
+
+    private void mapOffHeap(int baseAddress, int offset, int size, boolean writable) {
+        int firstPage = baseAddress >>> FASTMEM_PAGE_SHIFT;
+        for (int i = 0; i < size >>> FASTMEM_PAGE_SHIFT; i++) {
+            offHeapRead[firstPage + i] = offset + (i << FASTMEM_PAGE_SHIFT);
+            offHeapWrite[firstPage + i] = writable ? offset + (i << FASTMEM_PAGE_SHIFT) : -1;
+        }
     }
 
     public byte readByte(int address) {
+        if (offHeap != null) {
+            int offset = offHeapRead[address >>> FASTMEM_PAGE_SHIFT];
+            if (offset >= 0)
+                return offHeap.get(offset | (address & FASTMEM_PAGE_MASK));
+            return readByteSlow(address);
+        }
+
+        byte[] page = fastmemRead[address >>> FASTMEM_PAGE_SHIFT];
+        if (page != null)
+            return page[address & (page.length - 1)];
+        return readByteSlow(address);
+    }
+
+    public short readShort(int address) {
+        if (offHeap != null) {
+            int offset = offHeapRead[address >>> FASTMEM_PAGE_SHIFT];
+            if (offset >= 0)
+                return (short)SHORT_BUFFER_VIEW.get(offHeap, offset | (address & FASTMEM_PAGE_MASK));
+            return readShortSlow(address);
+        }
+
+        byte[] page = fastmemRead[address >>> FASTMEM_PAGE_SHIFT];
+        if (page != null)
+            return (short)SHORT_VIEW.get(page, address & (page.length - 1));
+        return readShortSlow(address);
+    }
+
+    public int readInt(int address) {
+        if (offHeap != null) {
+            int offset = offHeapRead[address >>> FASTMEM_PAGE_SHIFT];
+            if (offset >= 0)
+                return (int)INT_BUFFER_VIEW.get(offHeap, offset | (address & FASTMEM_PAGE_MASK));
+            return readIntSlow(address);
+        }
+
+        byte[] page = fastmemRead[address >>> FASTMEM_PAGE_SHIFT];
+        if (page != null)
+            return (int)INT_VIEW.get(page, address & (page.length - 1));
+        return readIntSlow(address);
+    }
+
+    public void writeByte(int address, byte value) {
+        if (offHeap != null) {
+            int offset = offHeapWrite[address >>> FASTMEM_PAGE_SHIFT];
+            if (offset >= 0) {
+                offset |= address & FASTMEM_PAGE_MASK;
+                offHeap.put(offset, value);
+                if (blockCache != null)
+                    blockCache.invalidate(offset);
+                return;
+            }
+            writeByteSlow(address, value);
+            return;
+        }
+
+        byte[] page = fastmemWrite[address >>> FASTMEM_PAGE_SHIFT];
+        if (page != null) {
+            int offset = address & (page.length - 1);
+            page[offset] = value;
+            if (blockCache != null)
+                blockCache.invalidate(offset);
+            return;
+        }
+        writeByteSlow(address, value);
+    }
+
+    public void writeShort(int address, short value) {
+        if (offHeap != null) {
+            int offset = offHeapWrite[address >>> FASTMEM_PAGE_SHIFT];
+            if (offset >= 0) {
+                offset |= address & FASTMEM_PAGE_MASK;
+                SHORT_BUFFER_VIEW.set(offHeap, offset, value);
+                if (blockCache != null)
+                    blockCache.invalidate(offset);
+                return;
+            }
+            writeShortSlow(address, value);
+            return;
+        }
+
+        byte[] page = fastmemWrite[address >>> FASTMEM_PAGE_SHIFT];
+        if (page != null) {
+            int offset = address & (page.length - 1);
+            SHORT_VIEW.set(page, offset, value);
+            if (blockCache != null)
+                blockCache.invalidate(offset);
+            return;
+        }
+        writeShortSlow(address, value);
+    }
+
+    public void writeInt(int address, int value) {
+        if (offHeap != null) {
+            int offset = offHeapWrite[address >>> FASTMEM_PAGE_SHIFT];
+            if (offset >= 0) {
+                offset |= address & FASTMEM_PAGE_MASK;
+                INT_BUFFER_VIEW.set(offHeap, offset, value);
+                if (blockCache != null)
+                    blockCache.invalidate(offset);
+                return;
+            }
+            writeIntSlow(address, value);
+            return;
+        }
+
+        byte[] page = fastmemWrite[address >>> FASTMEM_PAGE_SHIFT];
+        if (page != null) {
+            int offset = address & (page.length - 1);
+            INT_VIEW.set(page, offset, value);
+            if (blockCache != null)
+                blockCache.invalidate(offset);
+            return;
+        }
+        writeIntSlow(address, value);
+    }
+
+    private byte readByteSlow(int address) {
         SoftwarePageExecutor exec = pageExecutor[address >>> 16];
 
         if (exec == null)
@@ -625,7 +684,7 @@ public class Memory {
         return exec.readByte(address & exec.getAddressMask());
     }
 
-    public short readShort(int address) {
+    private short readShortSlow(int address) {
         SoftwarePageExecutor exec = pageExecutor[address >>> 16];
 
         if (exec == null)
@@ -634,7 +693,7 @@ public class Memory {
         return exec.readShort(address & exec.getAddressMask());
     }
 
-    public int readInt(int address) {
+    private int readIntSlow(int address) {
         SoftwarePageExecutor exec = pageExecutor[address >>> 16];
 
         if (exec == null)
@@ -643,7 +702,7 @@ public class Memory {
         return exec.readInt(address & exec.getAddressMask());
     }
 
-    public void writeByte(int address, byte value) {
+    private void writeByteSlow(int address, byte value) {
         SoftwarePageExecutor exec = pageExecutor[address >>> 16];
 
         if (exec == null)
@@ -652,7 +711,7 @@ public class Memory {
         exec.writeByte(address & exec.getAddressMask(), value);
     }
 
-    public void writeShort(int address, short value) {
+    private void writeShortSlow(int address, short value) {
         SoftwarePageExecutor exec = pageExecutor[address >>> 16];
 
         if (exec == null)
@@ -661,7 +720,7 @@ public class Memory {
         exec.writeShort(address & exec.getAddressMask(), value);
     }
 
-    public void writeInt(int address, int value) {
+    private void writeIntSlow(int address, int value) {
         SoftwarePageExecutor exec = pageExecutor[address >>> 16];
 
         if (exec == null) {
@@ -670,21 +729,97 @@ public class Memory {
         exec.writeInt(address & exec.getAddressMask(), value);
     }
 
-    public byte[] getBiosData() {
-        return biosAccess.bios;
+    public void setBlockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
     }
-    
-     public byte[] getRamData() {
-        return ramDirectAccess.ram;
+
+    public void copyToBios(int offset, byte[] source, int sourceOffset, int size) {
+        if (offHeap != null)
+            offHeap.put(OFF_HEAP_BIOS_OFFSET + offset, source, sourceOffset, size);
+        else
+            System.arraycopy(source, sourceOffset, biosAccess.bios, offset, size);
+    }
+
+    public void copyToRam(int offset, byte[] source, int sourceOffset, int size) {
+        if (offHeap != null)
+            offHeap.put(OFF_HEAP_RAM_OFFSET + offset, source, sourceOffset, size);
+        else
+            System.arraycopy(source, sourceOffset, ramDirectAccess.ram, offset, size);
+    }
+
+    /* Reads count little-endian words of RAM starting at offset, wrapping at the end of RAM */
+    public void readRamInts(int offset, int[] destination, int destinationOffset, int count) {
+        int size = PSXIntegerConstants.RAM_SIZE.getInt();
+        while (count > 0) {
+            offset &= size - 1;
+            int length = Integer.min(count, (size - offset) >>> 2);
+            ramInts.get(offset >>> 2, destination, destinationOffset, length);
+            offset += length << 2;
+            destinationOffset += length;
+            count -= length;
+        }
+    }
+
+    /* Writes count little-endian words to RAM starting at offset, wrapping at the end of RAM */
+    public void writeRamInts(int offset, int[] source, int sourceOffset, int count) {
+        int size = PSXIntegerConstants.RAM_SIZE.getInt();
+        while (count > 0) {
+            offset &= size - 1;
+            int length = Integer.min(count, (size - offset) >>> 2);
+            ramInts.put(offset >>> 2, source, sourceOffset, length);
+            if (blockCache != null) {
+                int lastPage = (offset + (length << 2) - 1) >>> BlockCache.PAGE_SHIFT;
+                for (int page = offset >>> BlockCache.PAGE_SHIFT; page <= lastPage; page++)
+                    blockCache.invalidate(page << BlockCache.PAGE_SHIFT);
+            }
+            offset += length << 2;
+            sourceOffset += length;
+            count -= length;
+        }
+    }
+
+    /* Little-endian view of RAM without copying, shared with tools and dumps */
+    public ByteBuffer getRamBuffer() {
+        if (offHeap != null)
+            return offHeap.slice(OFF_HEAP_RAM_OFFSET, PSXIntegerConstants.RAM_SIZE.getInt()).order(ByteOrder.LITTLE_ENDIAN);
+        return ByteBuffer.wrap(ramDirectAccess.ram).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public void snapshotRam(byte[] destination) {
+        copyRam(destination, true);
+    }
+
+    public void restoreRam(byte[] source) {
+        copyRam(source, false);
+        if (blockCache != null)
+            blockCache.invalidateAll();
+    }
+
+    private void copyRam(byte[] data, boolean snapshot) {
+        int size = PSXIntegerConstants.RAM_SIZE.getInt();
+        if (data.length != size)
+            throw new RuntimeException(String.format("RAM snapshot size mismatch 0x%X, expected 0x%X", data.length, size));
+
+        if (offHeap != null) {
+            if (snapshot)
+                offHeap.get(OFF_HEAP_RAM_OFFSET, data, 0, size);
+            else
+                offHeap.put(OFF_HEAP_RAM_OFFSET, data, 0, size);
+        } else {
+            if (snapshot)
+                System.arraycopy(ramDirectAccess.ram, 0, data, 0, size);
+            else
+                System.arraycopy(data, 0, ramDirectAccess.ram, 0, size);
+        }
     }
     
     public void dumpRam(String path) {
         try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
-            file.write(ramDirectAccess.ram);
+            file.getChannel().write(getRamBuffer());
             file.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
 
     }
-}
\ No newline at end of file
+}
@@ -1,20 +1,22 @@
 package jarpsx.backend;
 
-import java.util.Iterator;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 
 import jarpsx.backend.Emulator;
 
+/*
+ * Event queue timed in CPU cycles. Events are created once and referred to by
+ * an int handle, scheduling and cancelling them only moves the handle inside a
+ * binary min-heap ordered by cycles. Events due on the same cycle run in the
+ * order they were scheduled, so runs stay deterministic.
+ */
 public class Scheduler {
     public class Userdata {
         private String message;
         Userdata(String message) {
             this.message = message;
         }
-        
+
         public String getMessage() {
             return message;
         }
@@ -24,21 +26,31 @@ public class Scheduler {
         public void execute(Userdata userdata);
     }
 
-    private class Event {
-        private int eventId;
-        private long cycles;
-        private Userdata userdata;
-    }
-
     public static final int EVENT_BREAK_DISPATCH = 0;
+    public static final int EVENT_VBLANK = 1;
+    public static final int EVENT_CDROM = 2;
+    public static final int EVENT_TIMER = 3;
+
+    private static final int MAX_EVENT_CALLBACKS = 16;
+    private static final int INITIAL_EVENT_CAPACITY = 32;
 
     private Emulator emulator;
-    private long cyclesElapsed;
-    private long earlyEventCycles;
-    private int earlyEventIndex;
-    private List<Event> scheduledEvents;
     private EventCallback[] registeredEventCallbacks;
-    private static final int MAX_EVENT_CALLBACKS = 16;
+
+    /* Per handle */
+    private int[] eventIds;
+    private Userdata[] eventUserdata;
+    private long[] eventCycles;
+    private long[] eventSequence;
+    private int[] eventHeapIndex; // -1 when not scheduled
+    private boolean[] eventOneShot;
+    private int[] freeHandles;
+    private int freeHandleCount;
+    private int handleCount;
+
+    private int[] heap;
+    private int heapSize;
+    private long nextSequence;
 
     public void registerEventCallback(int eventId, EventCallback callback) {
         registeredEventCallbacks[eventId] = callback;
@@ -46,51 +58,162 @@ public class Scheduler {
 
     public Scheduler(Emulator emulator) {
         this.emulator = emulator;
-        scheduledEvents = new ArrayList<Event>();
-        earlyEventCycles = cyclesElapsed = 0L;
-        earlyEventIndex = -1;
         registeredEventCallbacks = new EventCallback[MAX_EVENT_CALLBACKS];
-    }
-
-    public void addCycles(long cycles) {
-        cyclesElapsed += cycles;
+        eventIds = new int[INITIAL_EVENT_CAPACITY];
+        eventUserdata = new Userdata[INITIAL_EVENT_CAPACITY];
+        eventCycles = new long[INITIAL_EVENT_CAPACITY];
+        eventSequence = new long[INITIAL_EVENT_CAPACITY];
+        eventHeapIndex = new int[INITIAL_EVENT_CAPACITY];
+        eventOneShot = new boolean[INITIAL_EVENT_CAPACITY];
+        freeHandles = new int[INITIAL_EVENT_CAPACITY];
+        heap = new int[INITIAL_EVENT_CAPACITY];
+        freeHandleCount = handleCount = heapSize = 0;
+        nextSequence = 0L;
     }
 
     public long getEarlyEventCycles() {
-        return earlyEventCycles;
+        return heapSize != 0 ? eventCycles[heap[0]] : Long.MAX_VALUE;
     }
 
+    /* Events are timed in CPU cycles so devices can schedule from inside an instruction */
     public long getCyclesElapsed() {
-        return cyclesElapsed;
+        return emulator.mips.getCyclesElapsed();
+    }
+
+    private void grow() {
+        int capacity = eventIds.length * 2;
+        eventIds = Arrays.copyOf(eventIds, capacity);
+        eventUserdata = Arrays.copyOf(eventUserdata, capacity);
+        eventCycles = Arrays.copyOf(eventCycles, capacity);
+        eventSequence = Arrays.copyOf(eventSequence, capacity);
+        eventHeapIndex = Arrays.copyOf(eventHeapIndex, capacity);
+        eventOneShot = Arrays.copyOf(eventOneShot, capacity);
+        freeHandles = Arrays.copyOf(freeHandles, capacity);
+        heap = Arrays.copyOf(heap, capacity);
+    }
+
+    public int createEvent(int eventId, Userdata userdata) {
+        int handle;
+        if (freeHandleCount != 0) {
+            handle = freeHandles[--freeHandleCount];
+        } else {
+            if (handleCount == eventIds.length)
+                grow();
+            handle = handleCount++;
+        }
+
+        eventIds[handle] = eventId;
+        eventUserdata[handle] = userdata;
+        eventHeapIndex[handle] = -1;
+        eventOneShot[handle] = false;
+        return handle;
+    }
+
+    public void releaseEvent(int handle) {
+        cancel(handle);
+        eventUserdata[handle] = null;
+        freeHandles[freeHandleCount++] = handle;
+    }
+
+    public boolean isScheduled(int handle) {
+        return eventHeapIndex[handle] >= 0;
     }
 
-    private void sortEarlyEventCycles() {
-        if (scheduledEvents.size() != 0) {
-            Collections.sort(scheduledEvents, (a, b) -> { return Long.compare(a.cycles, b.cycles); });
-            earlyEventCycles = scheduledEvents.get(0).cycles;
+    /* Schedules the event, or moves it if it is already pending */
+    public void schedule(int handle, long absoluteCycles) {
+        eventCycles[handle] = absoluteCycles;
+        eventSequence[handle] = nextSequence++;
+
+        int index = eventHeapIndex[handle];
+        if (index < 0) {
+            index = heapSize++;
+            heap[index] = handle;
+            eventHeapIndex[handle] = index;
+            siftUp(index);
+        } else {
+            siftUp(index);
+            siftDown(eventHeapIndex[handle]);
         }
     }
 
+    /* One-shot event, the handle is released once it fires */
+    public void schedule(long absoluteCycles, int eventId, Userdata userdata) {
+        int handle = createEvent(eventId, userdata);
+        eventOneShot[handle] = true;
+        schedule(handle, absoluteCycles);
+    }
+
+    public void cancel(int handle) {
+        int index = eventHeapIndex[handle];
+        if (index < 0)
+            return;
+
+        eventHeapIndex[handle] = -1;
+        int last = heap[--heapSize];
+        if (index == heapSize)
+            return;
+
+        heap[index] = last;
+        eventHeapIndex[last] = index;
+        siftUp(index);
+        siftDown(eventHeapIndex[last]);
+    }
+
     public void runEvents() {
-        Iterator<Event> it = scheduledEvents.iterator();
-        while (it.hasNext()) {
-            Event e = it.next();
-            if (cyclesElapsed >= e.cycles) {
-                if (registeredEventCallbacks[e.eventId] != null)
-                    registeredEventCallbacks[e.eventId].execute(e.userdata);
-                it.remove();
-            }
+        long cyclesElapsed = getCyclesElapsed();
+
+        // Callbacks may schedule again, the heap is consistent before each one runs
+        while (heapSize != 0 && cyclesElapsed >= eventCycles[heap[0]]) {
+            int handle = heap[0];
+            int eventId = eventIds[handle];
+            Userdata userdata = eventUserdata[handle];
+
+            if (eventOneShot[handle])
+                releaseEvent(handle);
+            else
+                cancel(handle);
+
+            if (registeredEventCallbacks[eventId] != null)
+                registeredEventCallbacks[eventId].execute(userdata);
         }
+    }
 
-        sortEarlyEventCycles();
+    private boolean isEarlier(int a, int b) {
+        if (eventCycles[a] != eventCycles[b])
+            return eventCycles[a] < eventCycles[b];
+        return eventSequence[a] < eventSequence[b];
     }
 
-    public void schedule(long absoluteCycles, int eventId, Userdata userdata) {
-        Event e = new Event();
-        e.eventId = eventId;
-        e.cycles = absoluteCycles;
-        e.userdata = userdata;
-        scheduledEvents.add(e);
-        sortEarlyEventCycles();
-    }
-}
\ No newline at end of file
+    private void place(int index, int handle) {
+        heap[index] = handle;
+        eventHeapIndex[handle] = index;
+    }
+
+    private void siftUp(int index) {
+        int handle = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!isEarlier(handle, heap[parent]))
+                break;
+            place(index, heap[parent]);
+            index = parent;
+        }
+        place(index, handle);
+    }
+
+    private void siftDown(int index) {
+        int handle = heap[index];
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= heapSize)
+                break;
+            if (child + 1 < heapSize && isEarlier(heap[child + 1], heap[child]))
+                child++;
+            if (!isEarlier(heap[child], handle))
+                break;
+            place(index, heap[child]);
+            index = child;
+        }
+        place(index, handle);
+    }
+}
@@ -0,0 +1,113 @@
+package jarpsx.backend;
+
+import java.util.Arrays;
+
+/*
+ * Reads sectors ahead of the drive on its own thread while a game streams
+ * sequentially. Sectors lba to lba + depth - 1 live in a ring indexed by lba modulo
+ * depth, taking one frees its slot and everything before it. A request outside
+ * the window counts as a seek, the caller reads it directly and prefetching
+ * restarts right after it.
+ */
+public class SectorPrefetcher {
+    public static final int SECTOR_SIZE = 0x930;
+
+    private IDisk disk;
+    private int depth;
+    private byte[][] slots;
+    private int[] slotLbas;
+    private int headLba;
+    private int nextLba;
+    private int generation;
+    private boolean active;
+    private Thread thread;
+    private long hits;
+    private long misses;
+
+    public SectorPrefetcher(IDisk disk, int depth) {
+        this.disk = disk;
+        this.depth = depth;
+        slots = new byte[depth][SECTOR_SIZE];
+        slotLbas = new int[depth];
+        Arrays.fill(slotLbas, Integer.MIN_VALUE);
+        headLba = nextLba = 0;
+        generation = 0;
+        active = false;
+        thread = null;
+        hits = misses = 0;
+    }
+
+    /* Starts filling the ring from lba, dropping whatever was prefetched before */
+    public synchronized void start(int lba) {
+        if (thread == null) {
+            thread = new Thread(this::run, "CD prefetch");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Arrays.fill(slotLbas, Integer.MIN_VALUE);
+        headLba = nextLba = lba;
+        generation++;
+        active = true;
+        notifyAll();
+    }
+
+    public synchronized void stop() {
+        active = false;
+        generation++;
+    }
+
+    /* Copies a prefetched sector into destination, false if the caller has to read it itself */
+    public synchronized boolean read(int lba, byte[] destination) {
+        if (active && lba >= headLba && lba < nextLba && slotLbas[Math.floorMod(lba, depth)] == lba) {
+            System.arraycopy(slots[Math.floorMod(lba, depth)], 0, destination, 0, SECTOR_SIZE);
+            headLba = lba + 1;
+            hits++;
+            notifyAll();
+            return true;
+        }
+
+        misses++;
+        if (active)
+            start(lba + 1);
+        return false;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void run() {
+        byte[] buffer = new byte[SECTOR_SIZE];
+        while (true) {
+            int lba;
+            int fetchGeneration;
+            synchronized (this) {
+                while (!active || nextLba - headLba >= depth) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                lba = nextLba;
+                fetchGeneration = generation;
+            }
+
+            // The slow part runs unlocked so the emulator thread never waits on the disk
+            disk.readData(buffer, (long)lba * SECTOR_SIZE, SECTOR_SIZE);
+
+            synchronized (this) {
+                if (fetchGeneration != generation || lba != nextLba)
+                    continue;
+                System.arraycopy(buffer, 0, slots[Math.floorMod(lba, depth)], 0, SECTOR_SIZE);
+                slotLbas[Math.floorMod(lba, depth)] = lba;
+                nextLba++;
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package jarpsx.backend;
+
+/*
+ * One track of a disc. Positions are sector numbers counted from 00:02:00 like the
+ * LBAs used by CDROM, the pregap runs from pregapStart up to start (index 01).
+ */
+public class Track {
+    public int number;
+    public boolean audio;
+    public int pregapStart;
+    public int start;
+    public int length;
+
+    public Track(int number, boolean audio, int pregapStart, int start, int length) {
+        this.number = number;
+        this.audio = audio;
+        this.pregapStart = pregapStart;
+        this.start = start;
+        this.length = length;
+    }
+}
@@ -0,0 +1,9 @@
+package jarpsx.backend.component;
+
+/*
+ * Receives CD-DA audio as it is played, 16-bit little-endian stereo samples at
+ * 44100Hz. Called on the emulator thread once per sector.
+ */
+public interface AudioSink {
+    public void samples(byte[] data, int offset, int size);
+}
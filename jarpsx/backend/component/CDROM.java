@@ -2,6 +2,13 @@ package jarpsx.backend.component;
 
 import jarpsx.backend.Emulator;
 import jarpsx.backend.IDisk;
+import jarpsx.backend.Memory;
+import jarpsx.backend.Scheduler;
+import jarpsx.backend.SectorPrefetcher;
+import jarpsx.backend.Track;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 class Fifo {
     public class Data {
@@ -227,6 +234,11 @@ public class CDROM {
     private static final int REQUEST_INT1_REQUEST = 15;
     private static final int REQUEST_INT3_GETTN = 16;
     private static final int REQUEST_INT3_GETTD = 17;
+    private static final int REQUEST_INT3_PLAY = 18;
+    private static final int REQUEST_PLAY = 19;
+
+    private static final int SECTOR_SIZE = 0x930;
+    private static final int PREFETCH_SECTORS = 16;
 
     private Emulator emulator;
     private int currentRegisterBank;
@@ -242,10 +254,18 @@ public class CDROM {
     private Fifo commandFifo;
     private int delay;
     private int requestType;
+    private int requestEvent;
     private int sectorOffset;
     private boolean sectorEnd;
     private int paused = 0;
     boolean dataReady;
+    // Raw sector the data port and DMA read from, loaded when it becomes ready
+    private byte[] sector;
+    private ByteBuffer sectorWords;
+    private int bufferedLba;
+    private int[] dataBlock;
+    private SectorPrefetcher prefetcher;
+    private AudioSink audioSink;
 
     private int readStatusCode() {
         return statusCode | StatusCode_Motor;
@@ -269,16 +289,40 @@ public class CDROM {
         responseFifo = new Fifo("Response FIFO", 16);
         commandFifo = new Fifo("Command FIFO", 32);
         dataReady = false;
+        sector = new byte[SECTOR_SIZE];
+        sectorWords = ByteBuffer.wrap(sector).order(ByteOrder.LITTLE_ENDIAN);
+        bufferedLba = Integer.MIN_VALUE;
+        dataBlock = new int[0x200];
+        prefetcher = new SectorPrefetcher(emulator.disk, PREFETCH_SECTORS);
+        emulator.scheduler.registerEventCallback(Scheduler.EVENT_CDROM, (userdata) -> step());
+        requestEvent = emulator.scheduler.createEvent(Scheduler.EVENT_CDROM, null);
+
+        // Index/status, command/response, parameter/data and request/interrupt registers
+        for (int i = 0; i < 4; i++) {
+            emulator.memory.mapIORead(Memory.IO_BYTE, Memory.CDROM_HSTS_OFFSET + i, (offset) -> read(offset - Memory.CDROM_HSTS_OFFSET));
+            emulator.memory.mapIOWrite(Memory.IO_BYTE, Memory.CDROM_ADDRESS_OFFSET + i, (offset, value) -> write(offset - Memory.CDROM_ADDRESS_OFFSET, value));
+        }
+        emulator.memory.markIOStable(Memory.CDROM_HSTS_OFFSET);
+        emulator.memory.markIOStable(Memory.CDROM_HINT_OFFSET);
     }
 
     public int getCurrentSectorLba() {
         return sectorLba;
     }
 
+    /* Receives CD-DA sectors while Play is running, null drops them */
+    public void setAudioSink(AudioSink audioSink) {
+        this.audioSink = audioSink;
+    }
+
     private static int BCD(int value) {
         return (value >>> 4) * 10 + (value & 0xF);
     }
 
+    private static int toBCD(int value) {
+        return (value / 10) << 4 | value % 10;
+    }
+
     public static int CdPosToInt(int min, int sec, int frame) {
         return ((min * 60 + sec) * 75 + frame) - 150;
     }
@@ -324,6 +368,7 @@ public class CDROM {
                     break;
                 }
                 case 0xA: // Init
+                    prefetcher.stop();
                     requestType = REQUEST_INT3_INT2;
                     mode = 0x20;
                     setDelay(InitAverage);
@@ -344,14 +389,18 @@ public class CDROM {
                     setDelay(5000);
                     break;
                 case 0x1B: // ReadS
+                    prefetcher.start(sectorLba);
                     requestType = REQUEST_INT3_INT1;
                     setDelay(50000);
                     break;
                 case 0x6: // ReadN
+                    prefetcher.start(sectorLba);
                     requestType = REQUEST_INT3_INT1;
                     setDelay(50000);
                     break;
                 case 0x9: // Pause
+                    prefetcher.stop();
+                    statusCode &= ~StatusCode_PlayCDDA;
                     requestType = REQUEST_INT3_INT2_PAUSE;
                     // requestType = REQUEST_INT3_INT2_PAUSE;
                     setDelay(30000);
@@ -368,10 +417,17 @@ public class CDROM {
                     requestType = REQUEST_INT3_INT2_SEEKL;
                     setDelay(10000);
                     break;
-                case 0x03: // Play
-                    requestType = REQUEST_INT3;
+                case 0x03: { // Play, an optional track number starts at that track instead of the Setloc position
+                    Track track = parameterFifo.empty() ? null : emulator.disk.getTrack(BCD(parameterFifo.fetch().data));
+                    if (track != null)
+                        sectorLba = track.start;
+                    sectorOffset = 0;
+                    statusCode = (statusCode & ~0xE0) | StatusCode_PlayCDDA;
+                    prefetcher.start(sectorLba);
+                    requestType = REQUEST_INT3_PLAY;
                     setDelay(10000);
                     break;
+                }
                 case 0x16: // SeekP
                     requestType = REQUEST_INT3_INT2_SEEKL;
                     setDelay(10000);
@@ -447,6 +503,8 @@ public class CDROM {
             Fifo.Data response = responseFifo.fetch();
             return response.data;
         }
+        case 2:
+            return readDataByte();
         case 3:
             if (currentRegisterBank == 1 || currentRegisterBank == 3)
                 return HINTSTS | 0xE0;
@@ -469,57 +527,116 @@ public class CDROM {
         }
     }
 
-    private static int littleEndian(byte[] data) {
-        int _data = 0;
-        for (int i = 0; i < data.length; i++) {
-            _data |= ((int)data[i] & 0xFF) << (i * 8);
-        }
-        return _data;
-    }
-
     public byte[] subheader = new byte[4];
     private int sectorLbaCurrent;
     public void writeDataWord(int addr) {
         emulator.memory.writeInt(addr, readDataWord());
     }
 
-    public int readDataWord() {
-        byte[] data = new byte[4];
+    /* Reads the raw sector at lba into the sector buffer unless it is already there */
+    private void loadSector(int lba) {
+        if (bufferedLba == lba)
+            return;
+        if (!prefetcher.read(lba, sector))
+            emulator.disk.readData(sector, (long)lba * SECTOR_SIZE, SECTOR_SIZE);
+        bufferedLba = lba;
+    }
+
+    /* Offset of the data port within the raw sector, whole sectors skip only the sync bytes */
+    private int getDataStart() {
+        return (mode & (1 << 5)) != 0 ? 0xC : 0x18;
+    }
+
+    /* Starts reading a sector through the data port, returns where its data ends */
+    private int beginData() {
         int sectorSizeMax = (mode & (1 << 5)) != 0 ? 0x924 : 0x800;
         int submode = (int)subheader[2] & 0xFF;
         int isData = (submode >>> 3) & 1;
 
-        if (sectorOffset == 0) {
-            emulator.disk.readData(subheader, sectorLba * 0x930 + 0xC + 4, 4);
-        }
-
-        if (sectorSizeMax == 0x924) {
-            emulator.disk.readData(data, sectorLba * 0x930 + sectorOffset + 0xC , 4);
-        } else {
-            emulator.disk.readData(data, sectorLba * 0x930 + sectorOffset + 0x18, 4);
-        }
+        loadSector(sectorLba);
+        if (sectorOffset == 0)
+            System.arraycopy(sector, 0x10, subheader, 0, 4);
+        return isData == 1 && sectorSizeMax == 0x924 ? 0x80C : sectorSizeMax;
+    }
 
-        sectorOffset += 4;
-        if (sectorOffset == sectorSizeMax || (isData == 1 && sectorOffset == 0x80C)) {
+    private void endData(int dataEnd) {
+        if (sectorOffset >= dataEnd) {
             sectorOffset = 0;
             sectorLba++;
             dataReady = true;
         }
+    }
 
-        return littleEndian(data);
+    public int readDataWord() {
+        int dataEnd = beginData();
+        int data = sectorWords.getInt(getDataStart() + sectorOffset);
+        sectorOffset += 4;
+        endData(dataEnd);
+        return data;
     }
 
-    public void setDelay(int delay) {
-        this.delay = delay;
+    public int readDataByte() {
+        int dataEnd = beginData();
+        int data = (int)sector[getDataStart() + sectorOffset] & 0xFF;
+        sectorOffset++;
+        endData(dataEnd);
+        return data;
     }
 
-    public void step(int cycles) {
-        if (delay > 0) {
-            delay -= cycles;
-            if (delay > 0)
-                return;
+    /* Fills words with data port words, copying a run at a time out of the buffered sector */
+    public void readDataWords(int[] words, int offset, int count) {
+        while (count > 0) {
+            if (sectorOffset == 0 || bufferedLba != sectorLba || (sectorOffset & 3) != 0) {
+                words[offset++] = readDataWord();
+                count--;
+                continue;
+            }
+
+            int dataEnd = beginData();
+            int run = Integer.min(count, (dataEnd - sectorOffset) >> 2);
+            if (run <= 0) {
+                words[offset++] = readDataWord();
+                count--;
+                continue;
+            }
+
+            int position = getDataStart() + sectorOffset;
+            for (int i = 0; i < run; i++)
+                words[offset + i] = sectorWords.getInt(position + i * 4);
+            offset += run;
+            count -= run;
+            sectorOffset += run * 4;
+            endData(dataEnd);
+        }
+    }
+
+    /* DMA channel 3, moves sector data to RAM in blocks instead of a disk read and writeInt per word */
+    public void writeDataBlock(int address, int words) {
+        while (words > 0) {
+            int length = Integer.min(words, dataBlock.length);
+            readDataWords(dataBlock, 0, length);
+            emulator.memory.writeRamInts(address, dataBlock, 0, length);
+            address = (address + length * 4) & 0xFFFFFC;
+            words -= length;
         }
+    }
+
+    private void endPlay() {
+        prefetcher.stop();
+        statusCode &= ~StatusCode_PlayCDDA;
+        responseFifo.enqueue(readStatusCode());
+        doIrq(Int_DataEnd);
+        requestType = 0;
+    }
+
+    public void setDelay(int delay) {
+        this.delay = delay;
+        emulator.scheduler.schedule(requestEvent, emulator.scheduler.getCyclesElapsed() + delay);
+    }
 
+    /* Runs once the delay of the current request has passed */
+    private void step() {
+        delay = 0;
         switch (requestType) {
         case REQUEST_INT3:
             responseFifo.enqueue(readStatusCode());
@@ -569,7 +686,8 @@ public class CDROM {
             HCHPCTL &= ~0x80;
             dataReady = false;
 
-            emulator.disk.readData(subheader, sectorLba * 0x930 + 0xC + 4, 4);
+            loadSector(sectorLba);
+            System.arraycopy(sector, 0x10, subheader, 0, 4);
             if (cmd == 0x1b) {
                 if (subheader[2] != 100) {
                     doIrq(Int_DataReady);
@@ -648,29 +766,55 @@ public class CDROM {
         case REQUEST_INT3_GETTN:
             responseFifo.enqueue(readStatusCode());
             responseFifo.enqueue(0x01);
-            responseFifo.enqueue(0x14);
+            responseFifo.enqueue(toBCD(Integer.max(emulator.disk.getTrackCount(), 1)));
             doIrq(Int_Acknowledge);
             requestType = 0;
             break;
         case REQUEST_INT3_GETTD: {
-            int track = parameterFifo.fetch().data;
+            // Track 0 asks for the lead-out, answers are absolute minutes and seconds
+            int trackNumber = BCD(parameterFifo.fetch().data);
+            Track track = emulator.disk.getTrack(trackNumber);
+            if (trackNumber != 0 && track == null) {
+                responseFifo.enqueue(readStatusCode() | StatusCode_Error);
+                responseFifo.enqueue(0x10);
+                doIrq(Int_DiskError);
+                requestType = 0;
+                break;
+            }
 
+            int position = (trackNumber == 0 ? emulator.disk.getSectorCount() : track.start) + 150;
             responseFifo.enqueue(readStatusCode());
-            switch (track) {
-            case 0:
-                responseFifo.enqueue(0);
-                responseFifo.enqueue(0);
+            responseFifo.enqueue(toBCD(position / (60 * 75)));
+            responseFifo.enqueue(toBCD((position / 75) % 60));
+            doIrq(Int_Acknowledge);
+            requestType = 0;
+            break;
+        }
+        case REQUEST_INT3_PLAY:
+            responseFifo.enqueue(readStatusCode());
+            doIrq(Int_Acknowledge);
+            HSTS &= ~(1 << 7);
+            requestType = REQUEST_PLAY;
+            setDelay((mode & (1 << 7)) != 0 ? ReadDoubleSpeed : ReadSingleSpeed);
+            break;
+        case REQUEST_PLAY: {
+            // Audio goes through the same sector buffer and prefetcher as data reads
+            Track track = emulator.disk.findTrack(sectorLba);
+            if (track == null) {
+                endPlay();
                 break;
-            case 2:
-                responseFifo.enqueue(0);
-                responseFifo.enqueue(0);
+            }
+
+            loadSector(sectorLba);
+            if (audioSink != null && track.audio)
+                audioSink.samples(sector, 0, SECTOR_SIZE);
+            sectorLba++;
+            // Autopause stops at the end of the track, otherwise play runs on to the lead-out
+            if ((mode & (1 << 1)) != 0 && sectorLba == track.start + track.length) {
+                endPlay();
                 break;
-            default:
-                System.out.printf("Unimplemented GetTd track %d\n", track);
-                //System.exit(1);
             }
-            doIrq(Int_Acknowledge);
-            requestType = 0;
+            setDelay((mode & (1 << 7)) != 0 ? ReadDoubleSpeed : ReadSingleSpeed);
             break;
         }
         }
@@ -0,0 +1,118 @@
+package jarpsx.backend.component;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Single producer, single consumer ring of 64-bit entries. The emulator thread
+ * pushes and the render thread peeks, executes and then pops, so once the ring is
+ * drained every pushed entry has been fully executed. An empty consumer spins for
+ * a while and then parks until the producer pushes again.
+ */
+class CommandRing {
+    private static final int SPIN_LIMIT = 1 << 12;
+
+    private long[] entries;
+    private int mask;
+    private AtomicLong writeIndex;
+    private AtomicLong readIndex;
+    private volatile boolean consumerParked;
+    private volatile Thread consumer;
+
+    CommandRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new RuntimeException(String.format("Command ring capacity %d is not a power of two", capacity));
+        entries = new long[capacity];
+        mask = capacity - 1;
+        writeIndex = new AtomicLong(0L);
+        readIndex = new AtomicLong(0L);
+        consumerParked = false;
+    }
+
+    void setConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    void push(long entry) {
+        long write = writeIndex.get();
+        while (write - readIndex.get() == entries.length)
+            Thread.onSpinWait();
+
+        entries[(int)write & mask] = entry;
+        writeIndex.set(write + 1);
+        // Both sides use volatile accesses so either the consumer sees the entry or we see it parked
+        if (consumerParked)
+            LockSupport.unpark(consumer);
+    }
+
+    /* Pushes (tag << 32) | word for count words, publishing them together as space frees up */
+    void push(long tag, int[] words, int offset, int count) {
+        int end = offset + count;
+        while (offset < end) {
+            long write = writeIndex.get();
+            int free;
+            while ((free = entries.length - (int)(write - readIndex.get())) == 0)
+                Thread.onSpinWait();
+
+            int length = Integer.min(free, end - offset);
+            for (int i = 0; i < length; i++)
+                entries[(int)(write + i) & mask] = (tag << 32) | (words[offset + i] & 0xFFFFFFFFL);
+            writeIndex.set(write + length);
+            if (consumerParked)
+                LockSupport.unpark(consumer);
+            offset += length;
+        }
+    }
+
+    /* Blocks until an entry is available and returns it without removing it */
+    long peek() {
+        long read = readIndex.get();
+        int spins = 0;
+        while (writeIndex.get() == read) {
+            if (++spins < SPIN_LIMIT) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            consumerParked = true;
+            if (writeIndex.get() == read)
+                LockSupport.park(this);
+            consumerParked = false;
+        }
+        return entries[(int)read & mask];
+    }
+
+    /*
+     * Copies the low words of up to count available entries tagged tag, stopping at the
+     * first other tag. Nothing is removed, the consumer pops what it executed.
+     */
+    int peek(long tag, int[] words, int count) {
+        long read = readIndex.get();
+        count = (int)Long.min(count, writeIndex.get() - read);
+        for (int i = 0; i < count; i++) {
+            long entry = entries[(int)(read + i) & mask];
+            if (entry >>> 32 != tag)
+                return i;
+            words[i] = (int)entry;
+        }
+        return count;
+    }
+
+    void pop() {
+        readIndex.set(readIndex.get() + 1);
+    }
+
+    void pop(int count) {
+        readIndex.set(readIndex.get() + count);
+    }
+
+    boolean isEmpty() {
+        return readIndex.get() == writeIndex.get();
+    }
+
+    /* Waits until the consumer executed every pushed entry */
+    void drain() {
+        while (!isEmpty())
+            Thread.onSpinWait();
+    }
+}
@@ -1,6 +1,7 @@
 package jarpsx.backend.component;
 
 import jarpsx.backend.Emulator;
+import jarpsx.backend.Memory;
 import jarpsx.backend.component.InterruptController;
 
 public class DMA {
@@ -53,12 +54,49 @@ public class DMA {
     private Emulator emulator;
     public int DPCR, DICR;
     private Channel[] channel;
+    private int[] gpuBlock;
     public DMA(Emulator emulator) {
         this.emulator = emulator;
+        gpuBlock = new int[0x1000];
         DPCR = DICR = 0;
         channel = new Channel[7];
         for (int i = 0; i < 7; i++) 
             channel[i] = new Channel();
+
+        for (int i = 0; i < 7; i++) {
+            Channel registers = channel[i];
+            int index = i;
+            int base = 0x1080 + i * 0x10;
+            emulator.memory.mapIORead(Memory.IO_INT, base + 0, (offset) -> registers.getBaseAddress());
+            emulator.memory.mapIORead(Memory.IO_INT, base + 4, (offset) -> registers.getBlockControl());
+            emulator.memory.mapIORead(Memory.IO_INT, base + 8, (offset) -> registers.getChannelControl());
+            emulator.memory.mapIOWrite(Memory.IO_INT, base + 0, (offset, value) -> registers.setBaseAddress(value));
+            emulator.memory.mapIOWrite(Memory.IO_INT, base + 4, (offset, value) -> registers.setBlockControl(value));
+            emulator.memory.mapIOWrite(Memory.IO_INT, base + 8, (offset, value) -> {
+                registers.setChannelControl(value);
+                if ((value & (1 << 28)) != 0 || (value & (1 << 24)) != 0)
+                    runChannel(index);
+            });
+            emulator.memory.mapIOWrite(Memory.IO_INT, base + 0xC, (offset, value) -> {});
+        }
+
+        emulator.memory.mapIORead(Memory.IO_INT, Memory.DPCR_OFFSET, (offset) -> getDPCR());
+        emulator.memory.mapIORead(Memory.IO_INT, Memory.DICR_OFFSET, (offset) -> getDICR());
+        emulator.memory.mapIORead(Memory.IO_BYTE, Memory.DICR_OFFSET + 2, (offset) -> DICR >>> 16);
+        emulator.memory.mapIOWrite(Memory.IO_INT, Memory.DPCR_OFFSET, (offset, value) -> setDPCR(value));
+        emulator.memory.mapIOWrite(Memory.IO_INT, Memory.DICR_OFFSET, (offset, value) -> setDICR(value));
+        emulator.memory.mapIOWrite(Memory.IO_BYTE, Memory.DICR_OFFSET + 2, (offset, value) -> setDICR(value << 16));
+    }
+
+    /* Hands a range of RAM to GP0 in chunks instead of one readInt and writeGp0 per word */
+    private void writeGpuBlock(int address, long words) {
+        while (words > 0) {
+            int length = (int)Long.min(words, gpuBlock.length);
+            emulator.memory.readRamInts(address, gpuBlock, 0, length);
+            emulator.gpu.writeGp0Block(gpuBlock, 0, length);
+            address = (address + length * 4) & 0xFFFFFC;
+            words -= length;
+        }
     }
 
     public void setDPCR(int value) {
@@ -113,6 +151,11 @@ public class DMA {
                 words = 0x10000;
 
             int baseAddress = channel.getBaseAddress() & ~3;
+            if (index == CDROM && transferDirection == TO_MAIN_RAM && transferStep == 4) {
+                emulator.cdrom.writeDataBlock(baseAddress, words);
+                words = 0;
+            }
+
             for (int i = 0; i < words; i++) {
                 int data;
                 switch (transferDirection) {
@@ -156,6 +199,11 @@ public class DMA {
 
             long words = (long)bs * (long)ba;
             int baseAddress = channel.getBaseAddress();
+            if (index == GPU && transferDirection == FROM_MAIN_RAM && transferStep == 4) {
+                writeGpuBlock(baseAddress, words);
+                words = 0;
+            }
+
             for (long i = 0; i < words; i++) {
                 int data;
                 switch (transferDirection) {
@@ -206,10 +254,7 @@ public class DMA {
                 int nextAddress = emulator.memory.readInt(baseAddress);
                 int commandSize = nextAddress >>> 24;
 
-                // will send GP0 packets here later
-                for (int _baseAddress = (baseAddress + 4) & 0xFFFFFC, i = _baseAddress; i < _baseAddress+commandSize*4; i += 4) {
-                    emulator.gpu.writeGp0(emulator.memory.readInt(i));
-                }
+                writeGpuBlock((baseAddress + 4) & 0xFFFFFC, commandSize);
 
                 if ((nextAddress & 0x800000) != 0)
                     break;
@@ -0,0 +1,164 @@
+package jarpsx.backend.component;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ * Streams presented frames to a file as uncompressed YUV4MPEG2 (4:4:4) or raw
+ * 24-bit RGB. The emulator thread only copies the frame into one of a fixed set
+ * of buffers, conversion and writing happen on a writer thread. When every buffer
+ * is still waiting to be written the frame is dropped rather than stalling.
+ */
+public class FrameRecorder implements FrameSink {
+    public static final int FORMAT_Y4M = 0;
+    public static final int FORMAT_RGB = 1;
+    private static final int QUEUE_CAPACITY = 8;
+
+    private class Frame {
+        int[] pixels;
+        int width, height;
+    }
+
+    private OutputStream output;
+    private int format;
+    private int frameRate;
+    private ArrayBlockingQueue<Frame> freeFrames;
+    private ArrayBlockingQueue<Frame> pendingFrames;
+    private Frame stopFrame;
+    private Thread writerThread;
+    private volatile boolean failed;
+    private long droppedFrames;
+    private long writtenFrames;
+    private int streamWidth, streamHeight;
+    private byte[] plane;
+
+    public FrameRecorder(String path, int format, int frameRate) throws IOException {
+        output = new BufferedOutputStream(new FileOutputStream(path), 1 << 20);
+        this.format = format;
+        this.frameRate = frameRate;
+        freeFrames = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        pendingFrames = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 1);
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            Frame frame = new Frame();
+            frame.pixels = new int[0];
+            freeFrames.add(frame);
+        }
+        stopFrame = new Frame();
+        failed = false;
+        droppedFrames = 0;
+        writtenFrames = 0;
+        streamWidth = streamHeight = 0;
+        plane = new byte[0];
+
+        writerThread = new Thread(this::runWriter, "Frame writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /* Y4M for .y4m paths, raw RGB otherwise */
+    public static FrameRecorder open(String path, int frameRate) throws IOException {
+        return new FrameRecorder(path, path.toLowerCase().endsWith(".y4m") ? FORMAT_Y4M : FORMAT_RGB, frameRate);
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    @Override
+    public void frame(int[] pixels, int stride, int width, int height) {
+        Frame frame = failed ? null : freeFrames.poll();
+        if (frame == null) {
+            droppedFrames++;
+            return;
+        }
+
+        if (frame.pixels.length < width * height)
+            frame.pixels = new int[width * height];
+        for (int y = 0; y < height; y++)
+            System.arraycopy(pixels, y * stride, frame.pixels, y * width, width);
+        frame.width = width;
+        frame.height = height;
+        pendingFrames.add(frame);
+    }
+
+    @Override
+    public void close() {
+        try {
+            pendingFrames.put(stopFrame);
+            writerThread.join();
+            output.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Failed to close frame capture: " + e.getMessage());
+        }
+        System.out.printf("Frame capture wrote %d frames, dropped %d\n", writtenFrames, droppedFrames);
+    }
+
+    private void runWriter() {
+        try {
+            while (true) {
+                Frame frame = pendingFrames.take();
+                if (frame == stopFrame)
+                    break;
+                if (!failed) {
+                    if (format == FORMAT_Y4M)
+                        writeY4m(frame);
+                    else
+                        writeRgb(frame);
+                    writtenFrames++;
+                }
+                freeFrames.add(frame);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("Frame capture stopped: " + e.getMessage());
+            failed = true;
+        }
+    }
+
+    private void writeRgb(Frame frame) throws IOException {
+        int size = frame.width * frame.height * 3;
+        if (plane.length < size)
+            plane = new byte[size];
+        for (int i = 0, j = 0; i < frame.width * frame.height; i++) {
+            int argb = frame.pixels[i];
+            plane[j++] = (byte)(argb >>> 16);
+            plane[j++] = (byte)(argb >>> 8);
+            plane[j++] = (byte)argb;
+        }
+        output.write(plane, 0, size);
+    }
+
+    /* The stream keeps the size of its first frame, later frames are cropped or padded with black */
+    private void writeY4m(Frame frame) throws IOException {
+        if (streamWidth == 0) {
+            streamWidth = frame.width;
+            streamHeight = frame.height;
+            String header = String.format("YUV4MPEG2 W%d H%d F%d:1 Ip A1:1 C444\n", streamWidth, streamHeight, frameRate);
+            output.write(header.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        int size = streamWidth * streamHeight;
+        if (plane.length < size * 3)
+            plane = new byte[size * 3];
+        for (int y = 0; y < streamHeight; y++) {
+            for (int x = 0; x < streamWidth; x++) {
+                int argb = x < frame.width && y < frame.height ? frame.pixels[y * frame.width + x] : 0;
+                int r = (argb >>> 16) & 0xFF, g = (argb >>> 8) & 0xFF, b = argb & 0xFF;
+                int i = y * streamWidth + x;
+                // BT.601 studio swing
+                plane[i] = (byte)(((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+                plane[size + i] = (byte)(((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                plane[size * 2 + i] = (byte)(((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+            }
+        }
+        output.write("FRAME\n".getBytes(StandardCharsets.US_ASCII));
+        output.write(plane, 0, size * 3);
+    }
+}
@@ -0,0 +1,10 @@
+package jarpsx.backend.component;
+
+/*
+ * Receives every presented frame as ARGB pixels. Called on the emulator thread
+ * right after present, so implementations should copy what they need and return.
+ */
+public interface FrameSink {
+    public void frame(int[] pixels, int stride, int width, int height);
+    public void close();
+}
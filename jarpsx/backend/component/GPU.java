@@ -3,8 +3,12 @@ package jarpsx.backend.component;
 import java.awt.image.BufferedImage;
 
 import jarpsx.backend.Emulator;
+import jarpsx.backend.Memory;
 import jarpsx.backend.component.InterruptController;
 import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class GPU {
     private Emulator emulator;
@@ -22,6 +26,16 @@ public class GPU {
     public static final int MEMORY_TRANSFER_FILL_VRAM = 69;
 
     private int[] vramData;
+    private TextureCache textureCache;
+
+    // Rows written since the last present and the display area it converted
+    private boolean[] dirtyRows;
+    private int presentedStart;
+    private int presentedWidth;
+    private int presentedHeight;
+    private int presentedDepth;
+    private FrameSink frameSink;
+    private GpuRecorder recorder;
     public int texpage;
     public int textureWindowSetting;
     public int maskBitSetting;
@@ -77,17 +91,54 @@ public class GPU {
 
     public int GPUREAD;
 
-    private class PolygonData {
-        int color; int vertex; int uv;
-        PolygonData(int color, int vertex, int uv) {
-            this.color = color;
-            this.vertex = vertex;
-            this.uv = uv;
-        }
-    }
+    private int[] transferWord;
+    private int[] rowScratch;
+
+    // Polygon attributes are r, g, b, u, v
+    private static final int ATTRIBUTE_COUNT = 5;
+    private static final int ATTRIBUTE_SHIFT = 16;
+    private int[][] attributeScratch;
 
+    // Tiled rendering, primitives are batched and binned into 64x64 tiles
+    private static final int DRAW_TRIANGLE = 0;
+    private static final int DRAW_RECTANGLE = 1;
+    private static final int SPAN_FLAT = 0;
+    private static final int SPAN_GOURAUD = 1;
+    private static final int SPAN_TEXTURED_RAW = 2;
+    private static final int SPAN_TEXTURED_MODULATED = 3;
+    private static final int SPAN_TEXTURED_LOOKUP = 4;
+    private static final int DRAW_BATCH_SIZE = 512;
+    private static final int TILE_SHIFT = 6;
+    private static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final int TILES_X = 1024 / TILE_SIZE;
+    private static final int TILES_Y = 512 / TILE_SIZE;
+    private boolean tiledRendering;
+    private DrawCommand[] drawBatch;
+    private int drawBatchCount;
+    private int[][] tileCommands;
+    private int[] tileCommandCount;
+    private int[] activeTiles;
+    private int activeTileCount;
+    private int[] batchWriteBounds;
+    private int[] batchReadBounds;
+
+    // Render thread mode, GP0 and GP1 writes are queued as (port << 32) | word
+    private static final int COMMAND_RING_CAPACITY = 1 << 16;
+    private static final long PORT_GP0 = 0L;
+    private static final long PORT_GP1 = 1L;
+    private static final long PORT_STOP = 2L;
+    private CommandRing commandRing;
+    private Thread renderThread;
+    private int queuedTexpage;
+    private int queuedGp0Words;
+    private boolean queuedTransferSize;
+    private int[] queuedTransfer;
+
+    /* Reused for every polygon command, vertex words are kept in per-vertex arrays */
     private class PolygonInfo {
-        PolygonData[] data;
+        int[] colors;
+        int[] vertices;
+        int[] uvs;
         int index;
         boolean gouraudShading;
         boolean textured;
@@ -95,23 +146,48 @@ public class GPU {
         boolean rawTexture;
         boolean fourVertices;
         int command;
-        PolygonInfo(int data) {
+        PolygonInfo() {
+            colors = new int[4];
+            vertices = new int[4];
+            uvs = new int[4];
+        }
+
+        void reset(int data) {
             gouraudShading = ((data >>> 28) & 1) != 0;
             fourVertices = ((data >>> 27) & 1) != 0;
             textured = ((data >>> 26) & 1) != 0;
             semiTransparent = ((data >>> 25) & 1) != 0;
             rawTexture = ((data >>> 24) & 1) != 0;
-            this.data = new PolygonData[4];
             command = data >>> 24;
             index = 0;
         }
 
-        public void addPolygon(PolygonData data) {
-            this.data[index] = data;
+        public void addVertex(int color, int vertex, int uv) {
+            colors[index] = color;
+            vertices[index] = vertex;
+            uvs[index] = uv;
             index++;
         }
     }
 
+    /* A primitive after setup, rasterized directly or later from a tile */
+    private static class DrawCommand {
+        int type;
+        int minX, minY, maxX, maxY;
+        int readMinX, readMinY, readMaxX, readMaxY;
+        int v1x, v1y, v2x, v2y, v3x, v3y;
+        int span;
+        boolean textured;
+        boolean gouraudShading;
+        boolean rawTexture;
+        int texpageX, texpageY, colorDepth, clut;
+        int uv, color;
+        int[] texels;
+        int[] dx = new int[ATTRIBUTE_COUNT];
+        int[] dy = new int[ATTRIBUTE_COUNT];
+        int[] base = new int[ATTRIBUTE_COUNT];
+    }
+
     private class RectangleInfo {
         boolean textured;
         boolean semiTransparent;
@@ -123,12 +199,16 @@ public class GPU {
         int width, height;
         int uv;
 
-        RectangleInfo(int data) {
+        void reset(int data) {
             size = ((data >>> 27) & 3);
             textured = ((data >>> 26) & 1) != 0;
             semiTransparent = ((data >>> 25) & 1) != 0;
             rawTexture = ((data >>> 24) & 1) != 0;
             command = data >>> 24;
+            vertex = 0;
+            uv = 0;
+            width = 0;
+            height = 0;
         }
     }
 
@@ -136,8 +216,40 @@ public class GPU {
         this.emulator = emulator;
         vram = new BufferedImage(1024, 512, BufferedImage.TYPE_INT_ARGB); // disgusting fucking piece of waste of memory but works anyway
         vramData = new int[1024 * 512];
+        textureCache = new TextureCache(vramData);
+        framebuffer = new BufferedImage(1024, 512, BufferedImage.TYPE_INT_ARGB);
+        dirtyRows = new boolean[512];
+        currentPolygonInfo = new PolygonInfo();
+        currentRectangleInfo = new RectangleInfo();
+        transferWord = new int[1];
+        rowScratch = new int[1024];
+        queuedTransfer = new int[1024];
+        presentedStart = -1;
+        presentedWidth = 0;
+        presentedHeight = 0;
+        presentedDepth = 0;
+        attributeScratch = new int[3][ATTRIBUTE_COUNT];
+        tiledRendering = false;
+        drawBatch = new DrawCommand[DRAW_BATCH_SIZE];
+        for (int i = 0; i < DRAW_BATCH_SIZE; i++)
+            drawBatch[i] = new DrawCommand();
+        drawBatchCount = 0;
+        tileCommands = new int[TILES_X * TILES_Y][DRAW_BATCH_SIZE];
+        tileCommandCount = new int[TILES_X * TILES_Y];
+        activeTiles = new int[TILES_X * TILES_Y];
+        activeTileCount = 0;
+        batchWriteBounds = new int[4];
+        batchReadBounds = new int[4];
+        resetBounds(batchWriteBounds);
+        resetBounds(batchReadBounds);
         currentState = 0;
         GPUREAD = 0;
+
+        emulator.memory.mapIORead(Memory.IO_INT, Memory.GPUREAD_OFFSET, (offset) -> readGpuRead());
+        emulator.memory.mapIORead(Memory.IO_INT, Memory.GPUSTAT_OFFSET, (offset) -> readGpuStat());
+        emulator.memory.mapIOWrite(Memory.IO_INT, Memory.GP0_COMMAND_OFFSET, (offset, value) -> writeGp0(value));
+        emulator.memory.mapIOWrite(Memory.IO_INT, Memory.GP1_COMMAND_OFFSET, (offset, value) -> writeGp1(value));
+        emulator.memory.markIOStable(Memory.GPUSTAT_OFFSET);
     }
 
     private int orient2D(int v1x, int v1y, int v2x, int v2y, int v3x, int v3y) {
@@ -203,20 +315,45 @@ public class GPU {
         return data;
     }
 
+    private static boolean isTopLeft(int a, int b) {
+        return a > 0 || (a == 0 && b > 0);
+    }
+
+    /* First step along a row where the edge function w + a * step is non-negative */
+    private static int getEdgeSpanStart(int w, int a) {
+        if (w >= 0)
+            return 0;
+        return a > 0 ? -Math.floorDiv(w, a) : Integer.MAX_VALUE;
+    }
+
+    /* Last step along a row where the edge function w + a * step is non-negative */
+    private static int getEdgeSpanEnd(int w, int a) {
+        if (a >= 0)
+            return w >= 0 || a > 0 ? Integer.MAX_VALUE : -1;
+        return w >= 0 ? Math.floorDiv(w, -a) : -1;
+    }
+
+    /* Change of an attribute per pixel, in ATTRIBUTE_SHIFT fixed point */
+    private static int getGradient(long numerator, int area) {
+        return (int)((numerator << ATTRIBUTE_SHIFT) / area);
+    }
+
+    /*
+     * Attributes are set up once per triangle as fixed-point gradients relative to
+     * the first vertex, then stepped per pixel along each span. Spans are cut from the
+     * edge functions per row and pixels on bottom or right edges are left to the
+     * neighbouring triangle.
+     */
     public void drawPolygon(PolygonInfo info, int index) {
-        int texpageX = (info.data[1].uv >>> 16) & 0xF;
-        int texpageY = (info.data[1].uv >>> (16+4)) & 0x1;
-        int colorDepth = (info.data[1].uv >>> (16+7)) & 3;
-
-        PolygonData v1 = info.data[index + 0];
-        PolygonData v2 = info.data[index + 1];
-        PolygonData v3 = info.data[index + 2];
-        int v1x = signExtend((short)(v1.vertex & 0xFFFF));
-        int v2x = signExtend((short)(v2.vertex & 0xFFFF));
-        int v3x = signExtend((short)(v3.vertex & 0xFFFF));
-        int v1y = signExtend((short)((v1.vertex >>> 16) & 0xFFFF));
-        int v2y = signExtend((short)((v2.vertex >>> 16) & 0xFFFF));
-        int v3y = signExtend((short)((v3.vertex >>> 16) & 0xFFFF));
+        int i1 = index + 0;
+        int i2 = index + 1;
+        int i3 = index + 2;
+        int v1x = signExtend((short)(info.vertices[i1] & 0xFFFF));
+        int v2x = signExtend((short)(info.vertices[i2] & 0xFFFF));
+        int v3x = signExtend((short)(info.vertices[i3] & 0xFFFF));
+        int v1y = signExtend((short)((info.vertices[i1] >>> 16) & 0xFFFF));
+        int v2y = signExtend((short)((info.vertices[i2] >>> 16) & 0xFFFF));
+        int v3y = signExtend((short)((info.vertices[i3] >>> 16) & 0xFFFF));
 
         v1x += drawOffsetX;
         v2x += drawOffsetX;
@@ -228,166 +365,625 @@ public class GPU {
         if (orient2D(v1x, v1y, v2x, v2y, v3x, v3y) < 0) {
             int tempX = v2x;
             int tempY = v2y;
-            PolygonData temp = v2;
+            int temp = i2;
             
             v2x = v3x;
             v2y = v3y;
             v3x = tempX;
             v3y = tempY;
-            v2 = v3;
-            v3 = temp;
+            i2 = i3;
+            i3 = temp;
         }
-                
-        int v1s = v1.uv & 0xFF;
-        int v2s = v2.uv & 0xFF;
-        int v3s = v3.uv & 0xFF;
-        int v1t = (v1.uv >> 8) & 0xFF;
-        int v2t = (v2.uv >> 8) & 0xFF;
-        int v3t = (v3.uv >> 8) & 0xFF;
+
+        int area = orient2D(v1x, v1y, v2x, v2y, v3x, v3y);
+        if (area == 0)
+            return;
 
         int minX = Integer.min(v1x, Integer.min(v2x, v3x));
         int maxX = Integer.max(v1x, Integer.max(v2x, v3x));
         int minY = Integer.min(v1y, Integer.min(v2y, v3y));
         int maxY = Integer.max(v1y, Integer.max(v2y, v3y));
-    
+
+        // The GPU drops polygons larger than 1023x511
+        if (maxX - minX >= 1024 || maxY - minY >= 512)
+            return;
+
+        minX = Integer.max(minX, Integer.max(drawingAreaX1, 0));
+        maxX = Integer.min(maxX, Integer.min(drawingAreaX2, 1024) - 1);
+        minY = Integer.max(minY, Integer.max(drawingAreaY1, 0));
+        maxY = Integer.min(maxY, Integer.min(drawingAreaY2, 512) - 1);
+        if (minX > maxX || minY > maxY)
+            return;
+
+        DrawCommand draw = nextDrawCommand();
+        draw.type = DRAW_TRIANGLE;
+        draw.minX = minX;
+        draw.maxX = maxX;
+        draw.minY = minY;
+        draw.maxY = maxY;
+        draw.v1x = v1x; draw.v1y = v1y;
+        draw.v2x = v2x; draw.v2y = v2y;
+        draw.v3x = v3x; draw.v3y = v3y;
+        draw.textured = info.textured;
+        draw.gouraudShading = info.gouraudShading;
+        draw.rawTexture = info.rawTexture;
+        draw.texpageX = (info.uvs[1] >>> 16) & 0xF;
+        draw.texpageY = (info.uvs[1] >>> (16+4)) & 0x1;
+        draw.colorDepth = (info.uvs[1] >>> (16+7)) & 3;
+        draw.clut = info.uvs[0] >>> 16;
+
+        int c1 = info.colors[info.gouraudShading ? i1 : 0];
+        int c2 = info.colors[info.gouraudShading ? i2 : 0];
+        int c3 = info.colors[info.gouraudShading ? i3 : 0];
+        int[] attributes1 = attributeScratch[0];
+        int[] attributes2 = attributeScratch[1];
+        int[] attributes3 = attributeScratch[2];
+        attributes1[0] = c1 & 0xFF; attributes1[1] = (c1 >> 8) & 0xFF; attributes1[2] = (c1 >> 16) & 0xFF;
+        attributes2[0] = c2 & 0xFF; attributes2[1] = (c2 >> 8) & 0xFF; attributes2[2] = (c2 >> 16) & 0xFF;
+        attributes3[0] = c3 & 0xFF; attributes3[1] = (c3 >> 8) & 0xFF; attributes3[2] = (c3 >> 16) & 0xFF;
+        attributes1[3] = info.uvs[i1] & 0xFF; attributes1[4] = (info.uvs[i1] >> 8) & 0xFF;
+        attributes2[3] = info.uvs[i2] & 0xFF; attributes2[4] = (info.uvs[i2] >> 8) & 0xFF;
+        attributes3[3] = info.uvs[i3] & 0xFF; attributes3[4] = (info.uvs[i3] >> 8) & 0xFF;
+
+        // Gradients over x and y, base values carry half a unit so truncation rounds.
+        // Products may wrap on slivers, the sum at covered pixels is always in range
+        int[] dx = draw.dx;
+        int[] dy = draw.dy;
+        int[] base = draw.base;
+        for (int i = 0; i < ATTRIBUTE_COUNT; i++) {
+            long d2 = attributes2[i] - attributes1[i];
+            long d3 = attributes3[i] - attributes1[i];
+            dx[i] = getGradient(d2 * (v3y - v1y) - d3 * (v2y - v1y), area);
+            dy[i] = getGradient(d3 * (v2x - v1x) - d2 * (v3x - v1x), area);
+            base[i] = (attributes1[i] << ATTRIBUTE_SHIFT) + (1 << (ATTRIBUTE_SHIFT - 1));
+        }
+
+        submitDrawCommand(draw);
+    }
+
+    /* Rasterizes the part of a triangle inside the inclusive rectangle x1, y1, x2, y2 */
+    private void rasterizeTriangle(DrawCommand draw, int x1, int y1, int x2, int y2) {
+        int v1x = draw.v1x, v1y = draw.v1y;
+        int v2x = draw.v2x, v2y = draw.v2y;
+        int v3x = draw.v3x, v3y = draw.v3y;
         int A12 = v1y - v2y;
         int B12 = v2x - v1x;
         int A23 = v2y - v3y;
         int B23 = v3x - v2x;
         int A31 = v3y - v1y;
         int B31 = v1x - v3x;
-        
-        int w1Row = orient2D(v2x, v2y, v3x, v3y, minX, minY);
-        int w2Row = orient2D(v3x, v3y, v1x, v1y, minX, minY);
-        int w3Row = orient2D(v1x, v1y, v2x, v2y, minX, minY);
-        int r1, r2, r3, b1, b2, b3, g1, g2, g3;
-        if (info.gouraudShading) {
-            r1 = v1.color & 0xFF;
-            r2 = v2.color & 0xFF;
-            r3 = v3.color & 0xFF;
-
-            g1 = (v1.color >> 8) & 0xFF;
-            g2 = (v2.color >> 8) & 0xFF;
-            g3 = (v3.color >> 8) & 0xFF;
-
-            b1 = (v1.color >> 16) & 0xFF;
-            b2 = (v2.color >> 16) & 0xFF;
-            b3 = (v3.color >> 16) & 0xFF;
-        } else {
-            r1 = info.data[0].color & 0xFF;
-            r2 = info.data[0].color & 0xFF;
-            r3 = info.data[0].color & 0xFF;
-            g1 = (info.data[0].color >> 8) & 0xFF;
-            g2 = (info.data[0].color >> 8) & 0xFF;
-            g3 = (info.data[0].color >> 8) & 0xFF;
-            b1 = (info.data[0].color >> 16) & 0xFF;
-            b2 = (info.data[0].color >> 16) & 0xFF;
-            b3 = (info.data[0].color >> 16) & 0xFF;
-        }
-
-        int divider = orient2D(v1x, v1y, v2x, v2y, v3x, v3y);
-        boolean transparent = false;
-        for (int y = minY; y <= maxY; y++) {
-            int w1 = w1Row;
-            int w2 = w2Row;
-            int w3 = w3Row;
-            for (int x = minX; x <= maxX; x++) {
-                if ((w1 | w2 | w3) >= 0)
-                {
-                    int r = (int)(((float) r1 * w1 + (float) r2 * w2 + (float) r3 * w3) / (float)divider);
-                    int g = (int)(((float) g1 * w1 + (float) g2 * w2 + (float) g3 * w3) / (float)divider);
-                    int b = (int)(((float) b1 * w1 + (float) b2 * w2 + (float) b3 * w3) / (float)divider);
-
-                    if (info.textured) {
-                        int u = (int)(((float) v1s * w1 + (float) v2s * w2 + (float) v3s * w3) / divider);
-                        int v = (int)(((float) v1t * w1 + (float) v2t * w2 + (float) v3t * w3) / divider);
-                        int color = lookupTexture(texpageX, texpageY, u, v, colorDepth, info.data[0].uv >>> 16);
-                        r = (color & 0x1F) << 3;
-                        g = ((color >> 5) & 0x1F) << 3;
-                        b = ((color >> 10) & 0x1F) << 3;
-                        transparent = color == 0;
-                    }
 
-                    if (transparent == false) {
-                        r /= 8;
-                        g /= 8;
-                        b /= 8;
-                        int color = (r & 0x1F) | ((g & 0x1F) << 5) | ((b & 0x1F) << 10);
-                        drawPixel(x, y, color);
-                    }
-                }
-                w1 += A23;
-                w2 += A31;
-                w3 += A12;
+        // Top-left rule, pixels exactly on other edges fail the >= 0 test
+        int w1Row = orient2D(v2x, v2y, v3x, v3y, x1, y1) + (isTopLeft(A23, B23) ? 0 : -1);
+        int w2Row = orient2D(v3x, v3y, v1x, v1y, x1, y1) + (isTopLeft(A31, B31) ? 0 : -1);
+        int w3Row = orient2D(v1x, v1y, v2x, v2y, x1, y1) + (isTopLeft(A12, B12) ? 0 : -1);
+
+        int[] dx = draw.dx;
+        int[] dy = draw.dy;
+        int[] base = draw.base;
+        int[] texels = draw.texels;
+        int width = x2 - x1;
+        for (int y = y1; y <= y2; y++, w1Row += B23, w2Row += B31, w3Row += B12) {
+            int start = Integer.max(getEdgeSpanStart(w1Row, A23), Integer.max(getEdgeSpanStart(w2Row, A31), getEdgeSpanStart(w3Row, A12)));
+            int end = Integer.min(getEdgeSpanEnd(w1Row, A23), Integer.min(getEdgeSpanEnd(w2Row, A31), getEdgeSpanEnd(w3Row, A12)));
+            end = Integer.min(end, width);
+            if (start > end)
+                continue;
+
+            int x = x1 + start;
+            int offsetX = x - v1x;
+            int offsetY = y - v1y;
+            int r = base[0] + dx[0] * offsetX + dy[0] * offsetY;
+            int g = base[1] + dx[1] * offsetX + dy[1] * offsetY;
+            int b = base[2] + dx[2] * offsetX + dy[2] * offsetY;
+            int u = base[3] + dx[3] * offsetX + dy[3] * offsetY;
+            int v = base[4] + dx[4] * offsetX + dy[4] * offsetY;
+            int pixel = y * 1024 + x;
+            int count = end - start + 1;
+
+            switch (draw.span) {
+            case SPAN_FLAT:
+                Arrays.fill(vramData, pixel, pixel + count, draw.color);
+                break;
+            case SPAN_GOURAUD:
+                spanGouraud(pixel, count, r, g, b, dx[0], dx[1], dx[2]);
+                break;
+            case SPAN_TEXTURED_RAW:
+                spanTexturedRaw(texels, pixel, count, u, v, dx[3], dx[4]);
+                break;
+            case SPAN_TEXTURED_MODULATED:
+                spanTexturedModulated(texels, pixel, count, r, g, b, u, v, dx);
+                break;
+            default:
+                spanTexturedLookup(draw, pixel, count, r, g, b, u, v, dx);
+                break;
             }
-            w1Row += B23;
-            w2Row += B31;
-            w3Row += B12;
         }
     }
 
-    public void drawRectangle(RectangleInfo info) {
-        int texpageX = (texpage >>> 0) & 0xF;
-        int texpageY = (texpage >>> 4) & 0x1;
-        int colorDepth = (texpage >>> 7) & 3;
+    /* Texel scaled by an 8-bit color where 0x80 keeps it as is */
+    private static int modulate(int texel, int r, int g, int b) {
+        int red = Integer.min(((texel & 0x1F) * r) >> 7, 0x1F);
+        int green = Integer.min((((texel >>> 5) & 0x1F) * g) >> 7, 0x1F);
+        int blue = Integer.min((((texel >>> 10) & 0x1F) * b) >> 7, 0x1F);
+        return red | green << 5 | blue << 10;
+    }
+
+    private void spanGouraud(int pixel, int count, int r, int g, int b, int dr, int dg, int db) {
+        for (int i = 0; i < count; i++, r += dr, g += dg, b += db)
+            vramData[pixel + i] = (r >> (ATTRIBUTE_SHIFT + 3)) | ((g >> (ATTRIBUTE_SHIFT + 3)) << 5) | ((b >> (ATTRIBUTE_SHIFT + 3)) << 10);
+    }
+
+    private void spanTexturedRaw(int[] texels, int pixel, int count, int u, int v, int du, int dv) {
+        for (int i = 0; i < count; i++, u += du, v += dv) {
+            int texel = texels[((v >> ATTRIBUTE_SHIFT) & 0xFF) << 8 | ((u >> ATTRIBUTE_SHIFT) & 0xFF)];
+            vramData[pixel + i] = texel != 0 ? texel & 0x7FFF : vramData[pixel + i];
+        }
+    }
 
+    private void spanTexturedModulated(int[] texels, int pixel, int count, int r, int g, int b, int u, int v, int[] dx) {
+        int dr = dx[0], dg = dx[1], db = dx[2], du = dx[3], dv = dx[4];
+        for (int i = 0; i < count; i++, r += dr, g += dg, b += db, u += du, v += dv) {
+            int texel = texels[((v >> ATTRIBUTE_SHIFT) & 0xFF) << 8 | ((u >> ATTRIBUTE_SHIFT) & 0xFF)];
+            int color = modulate(texel, r >> ATTRIBUTE_SHIFT, g >> ATTRIBUTE_SHIFT, b >> ATTRIBUTE_SHIFT);
+            vramData[pixel + i] = texel != 0 ? color : vramData[pixel + i];
+        }
+    }
+
+    /* Pages the texture cache does not hold, texels come from VRAM as the span runs */
+    private void spanTexturedLookup(DrawCommand draw, int pixel, int count, int r, int g, int b, int u, int v, int[] dx) {
+        for (int i = 0; i < count; i++, r += dx[0], g += dx[1], b += dx[2], u += dx[3], v += dx[4]) {
+            int texel = lookupTexture(draw.texpageX, draw.texpageY, (u >> ATTRIBUTE_SHIFT) & 0xFF, (v >> ATTRIBUTE_SHIFT) & 0xFF, draw.colorDepth, draw.clut);
+            if (texel == 0)
+                continue;
+            if (draw.rawTexture)
+                vramData[pixel + i] = texel & 0x7FFF;
+            else
+                vramData[pixel + i] = modulate(texel, r >> ATTRIBUTE_SHIFT, g >> ATTRIBUTE_SHIFT, b >> ATTRIBUTE_SHIFT);
+        }
+    }
+
+    public void drawRectangle(RectangleInfo info) {
         int vx = signExtend((short)(info.vertex & 0xFFFF));
         int vy = signExtend((short)((info.vertex >>> 16) & 0xFFFF));
         vx += drawOffsetX;
         vy += drawOffsetY;
 
-        int width = info.width;
-        int height = info.height;
-        boolean transparent = false;
-        int red = info.color & 0xFF, green = (info.color >>> 8) & 0xFF, blue = (info.color >>> 16) & 0xFF;
-
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                int r = red;
-                int g = green;
-                int b = blue;
-
-                if (info.textured) {
-                    int color = lookupTexture(texpageX, texpageY, (info.uv & 0xFF) + i, ((info.uv >>> 8) & 0xFF) + j, colorDepth, info.uv >>> 16);
-                    r = (color & 0x1F) << 3;
-                    g = ((color >> 5) & 0x1F) << 3;
-                    b = ((color >> 10) & 0x1F) << 3;
-                    transparent = color == 0;
-                }
+        int minX = Integer.max(vx, Integer.max(drawingAreaX1, 0));
+        int maxX = Integer.min(vx + info.width, Integer.min(drawingAreaX2, 1024)) - 1;
+        int minY = Integer.max(vy, Integer.max(drawingAreaY1, 0));
+        int maxY = Integer.min(vy + info.height, Integer.min(drawingAreaY2, 512)) - 1;
+        if (minX > maxX || minY > maxY)
+            return;
+
+        DrawCommand draw = nextDrawCommand();
+        draw.type = DRAW_RECTANGLE;
+        draw.minX = minX;
+        draw.maxX = maxX;
+        draw.minY = minY;
+        draw.maxY = maxY;
+        draw.v1x = vx;
+        draw.v1y = vy;
+        draw.textured = info.textured;
+        draw.gouraudShading = false;
+        draw.rawTexture = info.rawTexture;
+        draw.texpageX = (texpage >>> 0) & 0xF;
+        draw.texpageY = (texpage >>> 4) & 0x1;
+        draw.colorDepth = (texpage >>> 7) & 3;
+        draw.clut = info.uv >>> 16;
+        draw.uv = info.uv;
+        draw.color = info.color;
+        submitDrawCommand(draw);
+    }
 
-                if (transparent == false) {
-                    r /= 8;
-                    g /= 8;
-                    b /= 8;
-                    int color = (r & 0x1F) | ((g & 0x1F) << 5) | ((b & 0x1F) << 10);
-                    drawPixel(vx+i, vy+j, color);
+    /*
+     * Rasterizes the part of a rectangle inside the inclusive rectangle x1, y1, x2, y2.
+     * Cached sprites read each row of texels straight from the expanded page.
+     */
+    private void rasterizeRectangle(DrawCommand draw, int x1, int y1, int x2, int y2) {
+        int red = draw.color & 0xFF, green = (draw.color >>> 8) & 0xFF, blue = (draw.color >>> 16) & 0xFF;
+        int[] texels = draw.texels;
+        int count = x2 - x1 + 1;
+        int u = (draw.uv & 0xFF) + x1 - draw.v1x;
+        int v = ((draw.uv >>> 8) & 0xFF) + y1 - draw.v1y;
+
+        for (int y = y1; y <= y2; y++, v++) {
+            int pixel = y * 1024 + x1;
+            switch (draw.span) {
+            case SPAN_FLAT:
+                Arrays.fill(vramData, pixel, pixel + count, draw.color);
+                break;
+            case SPAN_TEXTURED_RAW: {
+                int texel = v << 8 | u;
+                for (int i = 0; i < count; i++) {
+                    int color = texels[texel + i];
+                    vramData[pixel + i] = color != 0 ? color & 0x7FFF : vramData[pixel + i];
+                }
+                break;
+            }
+            case SPAN_TEXTURED_MODULATED: {
+                int texel = v << 8 | u;
+                for (int i = 0; i < count; i++) {
+                    int color = texels[texel + i];
+                    vramData[pixel + i] = color != 0 ? modulate(color, red, green, blue) : vramData[pixel + i];
+                }
+                break;
+            }
+            default:
+                for (int i = 0; i < count; i++) {
+                    int color = lookupTexture(draw.texpageX, draw.texpageY, u + i, v, draw.colorDepth, draw.clut);
+                    if (color == 0)
+                        continue;
+                    vramData[pixel + i] = draw.rawTexture ? color & 0x7FFF : modulate(color, red, green, blue);
                 }
+                break;
+            }
+        }
+    }
+
+    /* Picks the span loop once per primitive so pixel loops carry no per-pixel mode checks */
+    private static int selectSpan(DrawCommand draw) {
+        if (!draw.textured) {
+            if (draw.type == DRAW_RECTANGLE || !draw.gouraudShading) {
+                if (draw.type == DRAW_TRIANGLE)
+                    draw.color = draw.base[0] >> (ATTRIBUTE_SHIFT + 3) | (draw.base[1] >> (ATTRIBUTE_SHIFT + 3)) << 5 | (draw.base[2] >> (ATTRIBUTE_SHIFT + 3)) << 10;
+                else
+                    draw.color = (draw.color & 0xFF) >> 3 | ((draw.color >>> 8) & 0xFF) >> 3 << 5 | ((draw.color >>> 16) & 0xFF) >> 3 << 10;
+                return SPAN_FLAT;
+            }
+            return SPAN_GOURAUD;
+        }
+
+        if (draw.texels == null)
+            return SPAN_TEXTURED_LOOKUP;
+        return draw.rawTexture ? SPAN_TEXTURED_RAW : SPAN_TEXTURED_MODULATED;
+    }
+
+    private void rasterize(DrawCommand draw, int x1, int y1, int x2, int y2) {
+        if (draw.type == DRAW_TRIANGLE)
+            rasterizeTriangle(draw, x1, y1, x2, y2);
+        else
+            rasterizeRectangle(draw, x1, y1, x2, y2);
+    }
+
+    /*
+     * Tiled rendering defers primitives into a batch binned per 64x64 tile. A flush
+     * rasterizes every tile on the fork join pool, each tile running its primitives
+     * in submission order. Primitives are independent across tiles unless one samples
+     * texels another one draws, so those hazards flush the batch first.
+     */
+    public void setTiledRendering(boolean enabled) {
+        flushDrawBatch();
+        tiledRendering = enabled;
+    }
+
+    public boolean isTiledRenderingEnabled() {
+        return tiledRendering;
+    }
+
+    private DrawCommand nextDrawCommand() {
+        if (!tiledRendering)
+            return drawBatch[0];
+        if (drawBatchCount == DRAW_BATCH_SIZE)
+            flushDrawBatch();
+        return drawBatch[drawBatchCount];
+    }
+
+    private void submitDrawCommand(DrawCommand draw) {
+        getTextureBounds(draw);
+        boolean readsTexels = draw.readMinX <= draw.readMaxX;
+        boolean readsOwnOutput = readsTexels && draw.readMinX <= draw.maxX && draw.minX <= draw.readMaxX
+            && draw.readMinY <= draw.maxY && draw.minY <= draw.readMaxY;
+        if (!tiledRendering || readsOwnOutput) {
+            // Sampling its own output only matches in plain scanline order on live VRAM
+            flushDrawBatch();
+            draw.texels = readsOwnOutput ? null : getTexels(draw);
+            draw.span = selectSpan(draw);
+            markWritten(draw.minX, draw.minY, draw.maxX, draw.maxY);
+            rasterize(draw, draw.minX, draw.minY, draw.maxX, draw.maxY);
+            return;
+        }
+
+        if (readsTexels && overlapsBounds(batchWriteBounds, draw.readMinX, draw.readMinY, draw.readMaxX, draw.readMaxY)
+                || overlapsBounds(batchReadBounds, draw.minX, draw.minY, draw.maxX, draw.maxY))
+            flushDrawBatchBefore(draw);
+
+        draw.texels = getTexels(draw);
+        draw.span = selectSpan(draw);
+        markWritten(draw.minX, draw.minY, draw.maxX, draw.maxY);
+
+        int index = drawBatchCount++;
+        extendBounds(batchWriteBounds, draw.minX, draw.minY, draw.maxX, draw.maxY);
+        if (readsTexels)
+            extendBounds(batchReadBounds, draw.readMinX, draw.readMinY, draw.readMaxX, draw.readMaxY);
+
+        for (int tileY = draw.minY >> TILE_SHIFT; tileY <= draw.maxY >> TILE_SHIFT; tileY++) {
+            for (int tileX = draw.minX >> TILE_SHIFT; tileX <= draw.maxX >> TILE_SHIFT; tileX++) {
+                int tile = tileY * TILES_X + tileX;
+                if (tileCommandCount[tile] == 0)
+                    activeTiles[activeTileCount++] = tile;
+                tileCommands[tile][tileCommandCount[tile]++] = index;
+            }
+        }
+    }
+
+    /* Flushes while draw waits in the pool slot past the batch, then moves it to the front */
+    private void flushDrawBatchBefore(DrawCommand draw) {
+        int slot = drawBatchCount;
+        flushDrawBatch();
+        drawBatch[slot] = drawBatch[0];
+        drawBatch[0] = draw;
+    }
+
+    /* Cached texels of a textured primitive, null when lookups go through lookupTexture */
+    private int[] getTexels(DrawCommand draw) {
+        if (!draw.textured || !TextureCache.isCacheable(draw.texpageX, draw.colorDepth, draw.clut))
+            return null;
+
+        // Rectangle texture coordinates are not wrapped and may leave the page
+        if (draw.type == DRAW_RECTANGLE) {
+            int maxU = (draw.uv & 0xFF) + draw.maxX - draw.v1x;
+            int maxV = ((draw.uv >>> 8) & 0xFF) + draw.maxY - draw.v1y;
+            if (maxU > 0xFF || maxV > 0xFF)
+                return null;
+        }
+
+        // Entries expand from VRAM, which has to include every batched primitive first
+        if (textureCache.willExpand(draw.texpageX, draw.texpageY, draw.colorDepth, draw.clut))
+            flushDrawBatchBefore(draw);
+        return textureCache.get(draw.texpageX, draw.texpageY, draw.colorDepth, draw.clut);
+    }
+
+    /* Rasterizes every batched primitive, callers touching VRAM outside the batch flush first */
+    private void flushDrawBatch() {
+        if (drawBatchCount == 0)
+            return;
+
+        if (activeTileCount == 1)
+            rasterizeTile(activeTiles[0]);
+        else
+            ForkJoinPool.commonPool().invoke(new TileTask(0, activeTileCount));
+
+        for (int i = 0; i < activeTileCount; i++)
+            tileCommandCount[activeTiles[i]] = 0;
+        activeTileCount = 0;
+        drawBatchCount = 0;
+        resetBounds(batchWriteBounds);
+        resetBounds(batchReadBounds);
+    }
+
+    private void rasterizeTile(int tile) {
+        int tileMinX = (tile % TILES_X) << TILE_SHIFT;
+        int tileMinY = (tile / TILES_X) << TILE_SHIFT;
+        int tileMaxX = tileMinX + TILE_SIZE - 1;
+        int tileMaxY = tileMinY + TILE_SIZE - 1;
+        int[] commands = tileCommands[tile];
+        int count = tileCommandCount[tile];
+        for (int i = 0; i < count; i++) {
+            DrawCommand draw = drawBatch[commands[i]];
+            rasterize(draw, Integer.max(draw.minX, tileMinX), Integer.max(draw.minY, tileMinY),
+                Integer.min(draw.maxX, tileMaxX), Integer.min(draw.maxY, tileMaxY));
+        }
+    }
+
+    /* VRAM words a textured primitive may sample, the whole of VRAM when lookups leave the page */
+    private static void getTextureBounds(DrawCommand draw) {
+        draw.readMinX = 0;
+        draw.readMaxX = -1;
+        if (!draw.textured)
+            return;
+
+        int pageX = draw.texpageX * 64;
+        int pageY = draw.texpageY * 256;
+        int shift = 2 - Integer.min(draw.colorDepth, 2);
+        int minU = 0, maxU = 255, minV = 0, maxV = 255;
+        if (draw.type == DRAW_RECTANGLE) {
+            minU = (draw.uv & 0xFF) + draw.minX - draw.v1x;
+            maxU = (draw.uv & 0xFF) + draw.maxX - draw.v1x;
+            minV = ((draw.uv >>> 8) & 0xFF) + draw.minY - draw.v1y;
+            maxV = ((draw.uv >>> 8) & 0xFF) + draw.maxY - draw.v1y;
+        }
+
+        draw.readMinX = pageX + (minU >> shift);
+        draw.readMaxX = pageX + (maxU >> shift);
+        draw.readMinY = pageY + minV;
+        draw.readMaxY = pageY + maxV;
+        if (draw.colorDepth < 2) {
+            int clutX = (draw.clut & 0x3F) * 16;
+            int clutY = (draw.clut >>> 6) & 511;
+            draw.readMinX = Integer.min(draw.readMinX, clutX);
+            draw.readMaxX = Integer.max(draw.readMaxX, clutX + (draw.colorDepth == 0 ? 16 : 256) - 1);
+            draw.readMinY = Integer.min(draw.readMinY, clutY);
+            draw.readMaxY = Integer.max(draw.readMaxY, clutY);
+        }
+
+        if (draw.readMaxX >= 1024 || draw.readMaxY >= 512) {
+            draw.readMinX = 0;
+            draw.readMinY = 0;
+            draw.readMaxX = 1023;
+            draw.readMaxY = 511;
+        }
+    }
+
+    private static boolean overlapsBounds(int[] bounds, int x1, int y1, int x2, int y2) {
+        return bounds[0] <= x2 && x1 <= bounds[2] && bounds[1] <= y2 && y1 <= bounds[3];
+    }
+
+    private static void extendBounds(int[] bounds, int x1, int y1, int x2, int y2) {
+        bounds[0] = Integer.min(bounds[0], x1);
+        bounds[1] = Integer.min(bounds[1], y1);
+        bounds[2] = Integer.max(bounds[2], x2);
+        bounds[3] = Integer.max(bounds[3], y2);
+    }
+
+    private static void resetBounds(int[] bounds) {
+        bounds[0] = Integer.MAX_VALUE;
+        bounds[1] = Integer.MAX_VALUE;
+        bounds[2] = Integer.MIN_VALUE;
+        bounds[3] = Integer.MIN_VALUE;
+    }
+
+    private class TileTask extends RecursiveAction {
+        private int start, end;
+
+        TileTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                rasterizeTile(activeTiles[start]);
+                return;
             }
+
+            int middle = (start + end) >>> 1;
+            invokeAll(new TileTask(start, middle), new TileTask(middle, end));
         }
     }
 
+    /* Fills whole rows at once and wraps around VRAM, written rows are marked once per fill */
     void fillRectangle(int x, int y, int width, int height, int color) {
-        int red = color & 0xFF, green = (color >>> 8) & 0xFF, blue = (color >>> 16) & 0xFF;
+        if (width == 0 || height == 0)
+            return;
+
+        int value = (color & 0xFF) >>> 3 | ((color >>> 8) & 0xFF) >>> 3 << 5 | ((color >>> 16) & 0xFF) >>> 3 << 10;
+        int right = x + Integer.min(width, 1024);
+        int bottom = y + height - 1;
+        for (int j = y; j <= bottom; j++) {
+            int row = (j & 511) * 1024;
+            Arrays.fill(vramData, row + x, row + Integer.min(right, 1024), value);
+            if (right > 1024)
+                Arrays.fill(vramData, row, row + right - 1024, value);
+        }
+
+        int left = right > 1024 ? 0 : x;
+        int last = right > 1024 ? 1023 : right - 1;
+        markWritten(left, y, last, Integer.min(bottom, 511));
+        if (bottom > 511)
+            markWritten(left, 0, last, bottom - 512);
+    }
+
+    private static int toArgb(int data) {
+        int red = data & 0x1F;
+        int green = (data >>> 5) & 0x1F;
+        int blue = (data >>> 10) & 0x1F;
+        return 0xFF00_0000 | red << (16+3) | (green << (8+3)) | (blue << (0+3));
+    }
+
+    /* Marks the inclusive rectangle x1, y1, x2, y2 as written for texture pages and present */
+    private void markWritten(int x1, int y1, int x2, int y2) {
+        textureCache.invalidate(x1, y1, x2, y2);
+        Arrays.fill(dirtyRows, y1, y2 + 1, true);
+    }
+
+    public int getDotClockDivider() {
+        if (((displayMode >>> 6) & 1) != 0)
+            return 7; // 368 pixels wide
+        switch (displayMode & 3) {
+        case 0: return 10;
+        case 1: return 8;
+        case 2: return 5;
+        default: return 4;
+        }
+    }
+
+    /* Visible width in pixels from the horizontal display range, the nominal width while unset */
+    public int getDisplayWidth() {
+        int x1 = horizontalScreenDisplayRange & 0xFFF;
+        int x2 = (horizontalScreenDisplayRange >>> 12) & 0xFFF;
+        int width = ((x2 - x1) / getDotClockDivider() + 2) & ~3;
+        if (x2 <= x1 || width <= 0)
+            width = ((displayMode >>> 6) & 1) != 0 ? 368 : 2560 / getDotClockDivider();
+        return Integer.min(width, 1024);
+    }
+
+    /* Visible height in lines from the vertical display range, the nominal height while unset */
+    public int getDisplayHeight() {
+        int y1 = verticalScreenDisplayRange & 0x3FF;
+        int y2 = (verticalScreenDisplayRange >>> 10) & 0x3FF;
+        boolean interlaced = ((displayMode >>> 2) & 1) != 0 && ((displayMode >>> 5) & 1) != 0;
+        int height = y2 - y1;
+        if (height <= 0)
+            height = 240;
+        return Integer.min(interlaced ? height * 2 : height, 512);
+    }
+
+    /*
+     * Converts the display area into the framebuffer image. Only rows written since
+     * the last present are converted again unless the display area or depth moved.
+     * 24-bit mode packs three bytes per pixel into the halfwords of a row.
+     */
+    public void present() {
+        if (recorder != null)
+            recorder.present(emulator.mips.getCyclesElapsed());
+        synchronize();
+        int startX = displayAreaStart & 0x3FF;
+        int startY = (displayAreaStart >>> 10) & 0x1FF;
+        int width = getDisplayWidth();
+        int height = getDisplayHeight();
+        int depth = (displayMode >>> 4) & 1;
+        boolean full = presentedStart != (displayAreaStart & 0x7FFFF) || presentedWidth != width
+            || presentedHeight != height || presentedDepth != depth;
+
+        int[] framebufferData = ((DataBufferInt)framebuffer.getRaster().getDataBuffer()).getData();
         for (int j = 0; j < height; j++) {
+            int row = (startY + j) & 511;
+            if (!full && !dirtyRows[row])
+                continue;
+
+            int source = row * 1024;
+            int destination = j * 1024;
+            if (depth == 0) {
+                for (int i = 0; i < width; i++)
+                    framebufferData[destination + i] = toArgb(vramData[source + ((startX + i) & 1023)]);
+                continue;
+            }
+
             for (int i = 0; i < width; i++) {
-                int r = red / 8, g = green / 8, b = blue / 8;
-                color = r | g << 5 | b << 10;
-                writeVram16(x + i, j + y, color);
+                int byteOffset = startX * 2 + i * 3;
+                int word0 = vramData[source + ((byteOffset >> 1) & 1023)];
+                int word1 = vramData[source + (((byteOffset >> 1) + 1) & 1023)];
+                int red, green, blue;
+                if ((byteOffset & 1) == 0) {
+                    red = word0 & 0xFF;
+                    green = (word0 >>> 8) & 0xFF;
+                    blue = word1 & 0xFF;
+                } else {
+                    red = (word0 >>> 8) & 0xFF;
+                    green = word1 & 0xFF;
+                    blue = (word1 >>> 8) & 0xFF;
+                }
+                framebufferData[destination + i] = 0xFF00_0000 | red << 16 | green << 8 | blue;
             }
         }
+
+        Arrays.fill(dirtyRows, false);
+        presentedStart = displayAreaStart & 0x7FFFF;
+        presentedWidth = width;
+        presentedHeight = height;
+        presentedDepth = depth;
+        if (frameSink != null)
+            frameSink.frame(framebufferData, 1024, width, height);
     }
 
-    public void present() {
-        int[] vramBuffer = ((DataBufferInt)vram.getRaster().getDataBuffer()).getData();
-        for (int i = 0; i < 1024 * 512; i++) {
-            int data = vramData[i];
-            int argb = 0xFF_00_00_00;
-            int red = data & 0x1F;
-            int green = (data >>> 5) & 0x1F;
-            int blue = (data >>> 10) & 0x1F;
-            argb |= (data & 0xFF) << 16 | ((data >>> 8) & 0xFF) << 8 | ((data >>> 16) & 0xFF);
-            vramBuffer[i] = 0xFF00_0000 | red << (16+3) | (green << (8+3)) | (blue << (0+3));
-        }
+    /* Receives the framebuffer after every present, null stops capturing */
+    public void setFrameSink(FrameSink frameSink) {
+        this.frameSink = frameSink;
+    }
+
+    /* Logs every GP0, GP1 and GPUREAD access and present from now on, null stops recording */
+    public void setRecorder(GpuRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public int getFramebufferWidth() {
+        return presentedWidth;
+    }
+
+    public int getFramebufferHeight() {
+        return presentedHeight;
     }
 
     public int readVram4(int x, int y) {
@@ -412,6 +1008,8 @@ public class GPU {
 
     public void writeVram8(int x, int y, int value) {
         int offset = (x >> 1) + (y << 8);
+        textureCache.invalidate(offset & 1023, offset >> 10);
+        dirtyRows[offset >> 10] = true;
         int data = vramData[offset];
         if ((x & 1) == 0) {
             vramData[offset] = (data & 0xFF00) | (value & 0xFF);
@@ -428,7 +1026,10 @@ public class GPU {
     }
 
     public void writeVram16(int x, int y, int value) {
-        vramData[y * 1024 + x] = value & 0xFFFF;
+        int index = y * 1024 + x;
+        textureCache.invalidate(index & 1023, index >> 10);
+        dirtyRows[index >> 10] = true;
+        vramData[index] = value & 0xFFFF;
     }
     
     public int readGpuStat() {
@@ -452,12 +1053,16 @@ public class GPU {
         int verticalInterlace = (displayMode >>> 5) & 1;
 
         // System.out.printf("%X\n", texpage);
+        int texpage = commandRing != null ? queuedTexpage : this.texpage;
         int gpustat = (texpage & 0x7FF) | ((texpage >>> 11) & 1) << 15 | dmaDirection << 29 | dma;
         
         return gpustat;
     }
     
     public int readGpuRead() {
+        if (recorder != null)
+            recorder.gpuRead(emulator.mips.getCyclesElapsed());
+        synchronize();
         int data = 0;
         if (--vramToCpuSizeDecrement >= 0) {
             for (int i = 0; i < 2; i++) {
@@ -477,7 +1082,236 @@ public class GPU {
         return GPUREAD;
     }
   
+    /*
+     * With the render thread running, GP0 words and the GP1 commands that touch
+     * drawing state are queued. The emulator thread only waits for the queue to
+     * drain before VRAM is read back or presented.
+     */
+    public void setRenderThread(boolean enabled) {
+        if (enabled == (commandRing != null))
+            return;
+
+        if (enabled) {
+            queuedTexpage = texpage;
+            queuedGp0Words = 0;
+            queuedTransferSize = false;
+            commandRing = new CommandRing(COMMAND_RING_CAPACITY);
+            renderThread = new Thread(this::runRenderThread, "GPU render");
+            renderThread.setDaemon(true);
+            commandRing.setConsumer(renderThread);
+            renderThread.start();
+            return;
+        }
+
+        commandRing.push(PORT_STOP << 32);
+        try {
+            renderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commandRing = null;
+        renderThread = null;
+    }
+
+    public boolean isRenderThreadEnabled() {
+        return commandRing != null;
+    }
+
+    /* Waits until the render thread executed every queued command and batched primitive */
+    public void synchronize() {
+        if (commandRing != null)
+            commandRing.drain();
+        flushDrawBatch();
+    }
+
+    private void runRenderThread() {
+        CommandRing ring = commandRing;
+        try {
+            while (true) {
+                long entry = ring.peek();
+                long port = entry >>> 32;
+                if (port == PORT_STOP) {
+                    ring.pop();
+                    return;
+                }
+
+                // image data of a CPU to VRAM transfer is taken off the ring in runs
+                if (port == PORT_GP0 && renderType == MEMORY_TRANSFER_CPU_TO_VRAM && currentState == 3) {
+                    int length = ring.peek(PORT_GP0, queuedTransfer, Integer.min(sizeDecrement, queuedTransfer.length));
+                    transferToVram(queuedTransfer, 0, length);
+                    ring.pop(length);
+                    continue;
+                }
+
+                if (port == PORT_GP0)
+                    executeGp0((int)entry);
+                else
+                    executeGp1((int)entry);
+                ring.pop();
+            }
+        } catch (Exception exception) {
+            System.out.println("GPU render thread stopped: " + exception.getMessage());
+            exception.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /* Number of words making up a GP0 command, as consumed by executeGp0 */
+    private static int getGp0CommandLength(int command) {
+        switch (command >>> 5) {
+        case RENDER_POLYGON: {
+            int vertices = (command & 0x08) != 0 ? 4 : 3;
+            int wordsPerVertex = (command & 0x05) != 0 ? 2 : 1;
+            return 1 + vertices * wordsPerVertex + ((command & 0x10) != 0 ? vertices - 1 : 0);
+        }
+        case RENDER_RECTANGLE:
+            return 2 + ((command >>> 2) & 1) + (((command >>> 3) & 3) == 0 ? 1 : 0);
+        case MEMORY_TRANSFER_VRAM_TO_VRAM:
+            return 4;
+        case MEMORY_TRANSFER_CPU_TO_VRAM:
+        case MEMORY_TRANSFER_VRAM_TO_CPU:
+            return 3;
+        }
+        return command == 0x02 ? 3 : 1;
+    }
+
+    /* Follows command boundaries of queued GP0 words so GPUSTAT sees texpage changes right away */
+    private void trackQueuedGp0(int data) {
+        if (queuedGp0Words > 0) {
+            if (--queuedGp0Words == 0 && queuedTransferSize) {
+                int xsiz = (((data & 0xFFFF) - 1) & 0x3FF) + 1;
+                int ysiz = (((data >>> 16) - 1) & 0x1FF) + 1;
+                queuedGp0Words = (xsiz * ysiz + 1) >>> 1;
+                queuedTransferSize = false;
+            }
+            return;
+        }
+
+        int command = data >>> 24;
+        queuedGp0Words = getGp0CommandLength(command) - 1;
+        queuedTransferSize = (command >>> 5) == MEMORY_TRANSFER_CPU_TO_VRAM;
+        if (command == 0xE1)
+            queuedTexpage = (data & ~(1 << 11)) | (queuedTexpage & (1 << 11));
+    }
+
+    /* Feeds a run of GP0 words, image data of CPU to VRAM transfers is stored a row at a time */
+    public void writeGp0Block(int[] words, int offset, int count) {
+        if (recorder != null)
+            recorder.gp0Block(emulator.mips.getCyclesElapsed(), words, offset, count);
+
+        int end = offset + count;
+        if (commandRing != null) {
+            for (int i = offset; i < end; i++)
+                trackQueuedGp0(words[i]);
+            commandRing.push(PORT_GP0, words, offset, count);
+            return;
+        }
+
+        while (offset < end) {
+            if (renderType == MEMORY_TRANSFER_CPU_TO_VRAM && currentState == 3) {
+                int length = Integer.min(sizeDecrement, end - offset);
+                transferToVram(words, offset, length);
+                offset += length;
+                continue;
+            }
+            executeGp0(words[offset++]);
+        }
+    }
+
+    /*
+     * Stores count words of a CPU to VRAM transfer. Halfwords are written in runs
+     * up to the end of the current row and wrap around VRAM, the padding halfword
+     * of an odd sized transfer is dropped.
+     */
+    private void transferToVram(int[] words, int offset, int count) {
+        int width = targetXPosition - initialXPosition;
+        int pixels = (targetYPosition - currentYPosition) * width - (currentXPosition - initialXPosition);
+        int halfwords = Integer.min(count * 2, pixels);
+        for (int h = 0; h < halfwords; ) {
+            int run = Integer.min(targetXPosition - currentXPosition, halfwords - h);
+            int x = currentXPosition & 1023;
+            int y = currentYPosition & 511;
+            int row = y * 1024;
+            if (x + run <= 1024) {
+                for (int i = 0; i < run; i++, h++)
+                    vramData[row + x + i] = (words[offset + (h >> 1)] >>> ((h & 1) << 4)) & 0xFFFF;
+                markWritten(x, y, x + run - 1, y);
+            } else {
+                for (int i = 0; i < run; i++, h++)
+                    vramData[row + ((x + i) & 1023)] = (words[offset + (h >> 1)] >>> ((h & 1) << 4)) & 0xFFFF;
+                markWritten(0, y, 1023, y);
+            }
+
+            currentXPosition += run;
+            if (currentXPosition >= targetXPosition) {
+                currentXPosition = initialXPosition;
+                ++currentYPosition;
+            }
+        }
+
+        sizeDecrement -= count;
+        if (sizeDecrement == 0)
+            renderType = 0;
+    }
+
+    /* Copies rows in the order that keeps overlapping source rows intact, wrapping around VRAM */
+    private void copyVram(int sourceX, int sourceY, int destinationX, int destinationY, int width, int height) {
+        boolean bottomUp = destinationY > sourceY;
+        for (int j = 0; j < height; j++) {
+            int row = bottomUp ? height - 1 - j : j;
+            int y = (destinationY + row) & 511;
+            int sourceRow = ((sourceY + row) & 511) * 1024;
+            int destinationRow = y * 1024;
+            if (sourceX + width <= 1024 && destinationX + width <= 1024) {
+                System.arraycopy(vramData, sourceRow + sourceX, vramData, destinationRow + destinationX, width);
+                markWritten(destinationX, y, destinationX + width - 1, y);
+                continue;
+            }
+
+            for (int i = 0; i < width; i++)
+                rowScratch[i] = vramData[sourceRow + ((sourceX + i) & 1023)];
+            for (int i = 0; i < width; i++)
+                vramData[destinationRow + ((destinationX + i) & 1023)] = rowScratch[i];
+            markWritten(0, y, 1023, y);
+        }
+    }
+
     public void writeGp0(int data) {
+        if (recorder != null)
+            recorder.gp0(emulator.mips.getCyclesElapsed(), data);
+        if (commandRing != null) {
+            queueGp0(data);
+            return;
+        }
+        executeGp0(data);
+    }
+
+    private void queueGp0(int data) {
+        trackQueuedGp0(data);
+        commandRing.push((PORT_GP0 << 32) | (data & 0xFFFFFFFFL));
+    }
+
+    public void writeGp1(int data) {
+        if (recorder != null)
+            recorder.gp1(emulator.mips.getCyclesElapsed(), data);
+        if (commandRing != null) {
+            switch (data >>> 24) {
+            case 0x00:
+            case 0x01: // Command buffer state belongs to the render thread
+                queuedGp0Words = 0;
+                queuedTransferSize = false;
+                commandRing.push((PORT_GP1 << 32) | (data & 0xFFFFFFFFL));
+                return;
+            case 0x09:
+                queuedTexpage = (queuedTexpage & ~(1 << 11)) | (data & 1) << 11;
+                commandRing.push((PORT_GP1 << 32) | (data & 0xFFFFFFFFL));
+                return;
+            }
+        }
+        executeGp1(data);
+    }
+
+    private void executeGp0(int data) {
         int command = data >>> 24;
 
         switch (renderType) {
@@ -514,7 +1348,7 @@ public class GPU {
 
             boolean addPolygonData = renderCount != currentRenderCount;
             if (addPolygonData)
-                currentPolygonInfo.addPolygon(new PolygonData(color, vertex, uv));
+                currentPolygonInfo.addVertex(color, vertex, uv);
 
             if (currentRenderCount == 0) {
                 color = 0;
@@ -550,19 +1384,8 @@ public class GPU {
                 break;
             }
             case 3:
-                if (--sizeDecrement >= 0) {
-                    for (int i = 0; i < 2; i++) {
-                        writeVram16(currentXPosition, currentYPosition, ((data >>> (i * 16)) & 0xFFFF));
-                        currentXPosition++;
-                        if (currentXPosition >= targetXPosition) {
-                            currentXPosition = initialXPosition;
-                            ++currentYPosition;
-                        }
-                    }
-                }
-
-                if (sizeDecrement == 0)
-                    renderType = 0;
+                transferWord[0] = data;
+                transferToVram(transferWord, 0, 1);
                 break;
             }
             return;
@@ -583,8 +1406,7 @@ public class GPU {
                 int ysiz = data >>> 16;
                 xsiz = ((xsiz - 1) & 0x3FF) + 1;
                 ysiz = ((ysiz - 1) & 0x1FF) + 1;
-                int sizeDecrement = (xsiz * ysiz + 1) & ~1;
-                sizeDecrement >>>= 1;
+                copyVram(initialXPosition, initialYPosition, destinationInitialXPosition, destinationInitialYPosition, xsiz, ysiz);
                 renderType = 0;
                 break;
             }
@@ -664,7 +1486,7 @@ public class GPU {
 
         switch (data >>> 29) {
         case RENDER_POLYGON:
-            currentPolygonInfo = new PolygonInfo(data);
+            currentPolygonInfo.reset(data);
             if (currentPolygonInfo.fourVertices) {
                 currentRenderCount = 4;
             } else {
@@ -677,7 +1499,7 @@ public class GPU {
             return;
         case RENDER_RECTANGLE:
             this.renderType = RENDER_RECTANGLE;
-            currentRectangleInfo = new RectangleInfo(data);
+            currentRectangleInfo.reset(data);
             switch (currentRectangleInfo.size) {
             case 1:
                 currentRectangleInfo.width = 1;
@@ -697,14 +1519,17 @@ public class GPU {
             currentState = 1;
             return;
         case MEMORY_TRANSFER_CPU_TO_VRAM:
+            flushDrawBatch();
             this.renderType = MEMORY_TRANSFER_CPU_TO_VRAM;
             currentState = 1;
             return;
         case MEMORY_TRANSFER_VRAM_TO_VRAM:
+            flushDrawBatch();
             this.renderType = MEMORY_TRANSFER_VRAM_TO_VRAM;
             currentState = 1;
             return;
         case MEMORY_TRANSFER_VRAM_TO_CPU:
+            flushDrawBatch();
             this.renderType = MEMORY_TRANSFER_VRAM_TO_CPU;
             currentState = 1;
             return;
@@ -712,6 +1537,7 @@ public class GPU {
 
         switch (command) {
         case 0x02:
+            flushDrawBatch();
             renderType = MEMORY_TRANSFER_FILL_VRAM;
             currentState = 1;
             color = data & 0xFFFFFF;
@@ -747,7 +1573,7 @@ public class GPU {
         }
     }
     
-    public void writeGp1(int data) {
+    private void executeGp1(int data) {
         int command = data >>> 24;
         switch (command) {
         case 0x00:
@@ -790,7 +1616,11 @@ public class GPU {
         // System.out.printf("write gp1 %08X\n", command);
     }
         
+    /* Whole of VRAM as 15-bit color for debugging, converted on every call */
     public BufferedImage getVram() {
+        int[] vramBuffer = ((DataBufferInt)vram.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < 1024 * 512; i++)
+            vramBuffer[i] = toArgb(vramData[i]);
         return vram;
     }
 
@@ -0,0 +1,123 @@
+package jarpsx.backend.component;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+ * Records everything the GPU is fed so GpuReplay can run it again without a CPU.
+ * The file starts with MAGIC and VERSION, followed by records made of a tag byte,
+ * the cycles since the previous record as a varint and the tag's payload:
+ *
+ *   TAG_GP0, TAG_GP1   one word
+ *   TAG_GP0_BLOCK      varint word count, then the words (DMA uploads)
+ *   TAG_GPUREAD        nothing, the replay reads GPUREAD to advance VRAM to CPU transfers
+ *   TAG_PRESENT        nothing, marks the end of a frame
+ *
+ * Recording has to start with a freshly reset GPU, the file holds no initial state.
+ */
+public class GpuRecorder {
+    public static final int MAGIC = 0x4A504752; // "JPGR"
+    public static final int VERSION = 1;
+
+    public static final int TAG_GP0 = 1;
+    public static final int TAG_GP1 = 2;
+    public static final int TAG_GP0_BLOCK = 3;
+    public static final int TAG_GPUREAD = 4;
+    public static final int TAG_PRESENT = 5;
+
+    private DataOutputStream output;
+    private long lastCycles;
+    private long frames;
+
+    public GpuRecorder(String path) throws IOException {
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 20));
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        lastCycles = 0;
+        frames = 0;
+    }
+
+    public synchronized void gp0(long cycles, int data) {
+        if (begin(TAG_GP0, cycles))
+            writeWord(data);
+    }
+
+    public synchronized void gp1(long cycles, int data) {
+        if (begin(TAG_GP1, cycles))
+            writeWord(data);
+    }
+
+    public synchronized void gp0Block(long cycles, int[] words, int offset, int count) {
+        if (!begin(TAG_GP0_BLOCK, cycles))
+            return;
+        try {
+            writeVarint(count);
+            for (int i = 0; i < count; i++)
+                output.writeInt(words[offset + i]);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public synchronized void gpuRead(long cycles) {
+        begin(TAG_GPUREAD, cycles);
+    }
+
+    public synchronized void present(long cycles) {
+        if (begin(TAG_PRESENT, cycles))
+            frames++;
+    }
+
+    public synchronized void close() {
+        if (output == null)
+            return;
+        try {
+            output.close();
+        } catch (IOException e) {
+            System.out.println("Failed to close GPU recording: " + e.getMessage());
+        }
+        output = null;
+        System.out.printf("GPU recording closed after %d frames\n", frames);
+    }
+
+    private boolean begin(int tag, long cycles) {
+        if (output == null)
+            return false;
+        try {
+            output.writeByte(tag);
+            writeVarint(cycles - lastCycles);
+            lastCycles = cycles;
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    private void writeWord(int data) {
+        try {
+            output.writeInt(data);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int)(value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte((int)value);
+    }
+
+    private void fail(IOException e) {
+        System.out.println("GPU recording stopped: " + e.getMessage());
+        try {
+            output.close();
+        } catch (IOException ignored) {
+        }
+        output = null;
+    }
+}
@@ -0,0 +1,113 @@
+package jarpsx.backend.component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/*
+ * Feeds a GpuRecorder file into a GPU. The whole file is loaded up front so a
+ * replay measures the GPU and not the disk.
+ */
+public class GpuReplay {
+    private ByteBuffer data;
+    private int[] block;
+    private long words;
+    private long frames;
+    private long cycles;
+
+    public GpuReplay(String path) throws IOException {
+        data = ByteBuffer.wrap(Files.readAllBytes(Paths.get(path)));
+        if (data.remaining() < 8 || data.getInt(0) != GpuRecorder.MAGIC)
+            throw new RuntimeException(String.format("%s is not a GPU recording", path));
+        if (data.getInt(4) != GpuRecorder.VERSION)
+            throw new RuntimeException(String.format("GPU recording version %d is not supported", data.getInt(4)));
+        block = new int[0x1000];
+        scan();
+    }
+
+    /* GP0 and GP1 words in the recording */
+    public long getWordCount() {
+        return words;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /* CPU cycles covered by the recording */
+    public long getCycles() {
+        return cycles;
+    }
+
+    private void scan() {
+        data.position(8);
+        while (data.hasRemaining()) {
+            int tag = data.get();
+            cycles += readVarint();
+            switch (tag) {
+            case GpuRecorder.TAG_GP0:
+            case GpuRecorder.TAG_GP1:
+                data.position(data.position() + 4);
+                words++;
+                break;
+            case GpuRecorder.TAG_GP0_BLOCK: {
+                int count = (int)readVarint();
+                data.position(data.position() + count * 4);
+                words += count;
+                break;
+            }
+            case GpuRecorder.TAG_GPUREAD:
+                break;
+            case GpuRecorder.TAG_PRESENT:
+                frames++;
+                break;
+            default:
+                throw new RuntimeException(String.format("Unknown GPU recording tag %d at offset %d", tag, data.position() - 1));
+            }
+        }
+    }
+
+    /* Runs the whole recording and waits for the GPU to finish it */
+    public void run(GPU gpu) {
+        data.position(8);
+        while (data.hasRemaining()) {
+            int tag = data.get();
+            readVarint();
+            switch (tag) {
+            case GpuRecorder.TAG_GP0:
+                gpu.writeGp0(data.getInt());
+                break;
+            case GpuRecorder.TAG_GP1:
+                gpu.writeGp1(data.getInt());
+                break;
+            case GpuRecorder.TAG_GP0_BLOCK: {
+                int count = (int)readVarint();
+                if (block.length < count)
+                    block = new int[count];
+                data.asIntBuffer().get(block, 0, count);
+                data.position(data.position() + count * 4);
+                gpu.writeGp0Block(block, 0, count);
+                break;
+            }
+            case GpuRecorder.TAG_GPUREAD:
+                gpu.readGpuRead();
+                break;
+            case GpuRecorder.TAG_PRESENT:
+                gpu.present();
+                break;
+            }
+        }
+        gpu.synchronize();
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = data.get();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package jarpsx.backend.component;
 
 import jarpsx.backend.Emulator;
+import jarpsx.backend.Memory;
 
 public class InterruptController {
     private int status;
@@ -24,6 +25,21 @@ public class InterruptController {
         mask = 0;
         status = 0;
         irqSet = false;
+
+        for (int width = Memory.IO_SHORT; width <= Memory.IO_INT; width <<= 1) {
+            emulator.memory.mapIORead(width, Memory.I_STAT_OFFSET, (offset) -> readStatus());
+            emulator.memory.mapIORead(width, Memory.I_MASK_OFFSET, (offset) -> readMask());
+            emulator.memory.mapIOWrite(width, Memory.I_STAT_OFFSET, (offset, value) -> {
+                writeStatus(readStatus() & value);
+                acknowledge();
+            });
+            emulator.memory.mapIOWrite(width, Memory.I_MASK_OFFSET, (offset, value) -> {
+                writeMask(value & 0xFFFF);
+                acknowledge();
+            });
+        }
+        emulator.memory.markIOStable(Memory.I_STAT_OFFSET);
+        emulator.memory.markIOStable(Memory.I_MASK_OFFSET);
     }
     
     public int readStatus() {
@@ -1,6 +1,7 @@
 package jarpsx.backend.component;
 
 import jarpsx.backend.Emulator;
+import jarpsx.backend.Memory;
 
 public class MDEC {
     private Emulator emulator;
@@ -69,6 +70,10 @@ public class MDEC {
         mdecCodeBlock = new int[65536*2];
         currentMdecCodeOffset = 0;
         src = 0;
+
+        emulator.memory.mapIORead(Memory.IO_INT, Memory.MDEC_STATUS_OFFSET, (offset) -> readStatusRegister());
+        emulator.memory.mapIOWrite(Memory.IO_INT, Memory.MDEC_COMMAND_OFFSET, (offset, value) -> writeDataWord(value));
+        emulator.memory.mapIOWrite(Memory.IO_INT, Memory.MDEC_CONTROL_OFFSET, (offset, value) -> writeMdecControl(value));
     }
 
     private static int signExtend(int value) {
@@ -1,6 +1,7 @@
 package jarpsx.backend.component;
 
 import jarpsx.backend.Emulator;
+import jarpsx.backend.Memory;
 import jarpsx.backend.component.InterruptController;
 import jarpsx.backend.component.PSXController;
 
@@ -11,7 +12,7 @@ public class Peripheral {
     private int ctrl;
     private int mode;
     private int baud;
-    private int baudRateTimer;
+    private long baudRateReloadCycles;
     private int cpuCycles;
     private int[] rxData;
     private int rxIndex;
@@ -24,6 +25,18 @@ public class Peripheral {
         this.emulator = emulator;
         rxData = new int[32];
         stat = 3;
+
+        emulator.memory.mapIORead(Memory.IO_BYTE, Memory.JOY_DATA_OFFSET, (offset) -> readRxData());
+        emulator.memory.mapIORead(Memory.IO_SHORT, Memory.JOY_DATA_OFFSET, (offset) -> readRxData());
+        emulator.memory.mapIORead(Memory.IO_SHORT, Memory.JOY_STAT_OFFSET, (offset) -> readStat());
+        emulator.memory.mapIORead(Memory.IO_SHORT, Memory.JOY_MODE_OFFSET, (offset) -> readMode());
+        emulator.memory.mapIORead(Memory.IO_SHORT, Memory.JOY_CTRL_OFFSET, (offset) -> readCtrl());
+        emulator.memory.mapIORead(Memory.IO_SHORT, Memory.JOY_BAUD_OFFSET, (offset) -> readBaudRate());
+        emulator.memory.mapIOWrite(Memory.IO_BYTE, Memory.JOY_DATA_OFFSET, (offset, value) -> writeTxData(value));
+        emulator.memory.mapIOWrite(Memory.IO_SHORT, Memory.JOY_DATA_OFFSET, (offset, value) -> writeTxData(value));
+        emulator.memory.mapIOWrite(Memory.IO_SHORT, Memory.JOY_MODE_OFFSET, (offset, value) -> writeMode(value));
+        emulator.memory.mapIOWrite(Memory.IO_SHORT, Memory.JOY_CTRL_OFFSET, (offset, value) -> writeCtrl(value));
+        emulator.memory.mapIOWrite(Memory.IO_SHORT, Memory.JOY_BAUD_OFFSET, (offset, value) -> writeBaudRate(value));
     }
 
     public int getReloadFactor() {        
@@ -101,12 +114,27 @@ public class Peripheral {
         return data;
     }
 
+    /* The baud rate timer counts down every cycle and reloads at zero, work it out from the last reload */
+    private int readBaudRateTimer() {
+        int reload = getReloadFactor() * readBaudRate() / 2;
+        if (reload <= 0)
+            return 0;
+
+        long elapsed = emulator.mips.getCyclesElapsed() - baudRateReloadCycles;
+        return reload - (int)(elapsed % reload);
+    }
+
+    private void reloadBaudRateTimer() {
+        baudRateReloadCycles = emulator.mips.getCyclesElapsed();
+    }
+
     public int readStat() {
-        return stat | baudRateTimer << 11;
+        return stat | readBaudRateTimer() << 11;
     }
 
     public void writeMode(int data) {
         mode = data;
+        reloadBaudRateTimer();
     }
 
     public int readMode() {
@@ -129,12 +157,6 @@ public class Peripheral {
 
     public void writeBaudRate(int value) {
         baud = value;
+        reloadBaudRateTimer();
     }
-
-    public void step(int cycles) {
-        baudRateTimer -= cycles;
-        if (baudRateTimer <= 0) {
-            baudRateTimer = getReloadFactor() * readBaudRate() / 2;
-        }
-    }
-}
\ No newline at end of file
+}
@@ -1,5 +1,60 @@
 package jarpsx.backend.component;
 
+import jarpsx.backend.Emulator;
+import jarpsx.backend.Memory;
+
+/*
+ * Sound is not emulated yet. The register range is mapped so software can poll
+ * it, only the transfer control/status registers keep the last written value.
+ */
 public class SPU {
+    private static final int REGISTER_BASE_OFFSET = 0x1C00;
+    private static final int REGISTER_RANGE = 0x400;
+    private static final int TRANSFER_ADDRESS_OFFSET = 0x1DA6;
+    private static final int TRANSFER_FIFO_OFFSET = 0x1DA8;
+    private static final int CONTROL_OFFSET = 0x1DAA;
+
+    private Emulator emulator;
+    private int transferAddress;
+    private int transferFifo;
+    private int control;
+
+    public SPU(Emulator emulator) {
+        this.emulator = emulator;
+        transferAddress = transferFifo = control = 0;
+
+        for (int offset = REGISTER_BASE_OFFSET; offset < REGISTER_BASE_OFFSET + REGISTER_RANGE; offset++) {
+            emulator.memory.mapIORead(Memory.IO_SHORT, offset, (register) -> readRegister(register));
+            emulator.memory.mapIOWrite(Memory.IO_SHORT, offset, (register, value) -> writeRegister(register, value));
+            emulator.memory.mapIORead(Memory.IO_INT, offset, (register) -> {
+                System.out.printf("Unimplemented SPU readInt 0x1F80%04X", register);
+                return 0;
+            });
+        }
+    }
+
+    public int readRegister(int offset) {
+        switch (offset) {
+        case TRANSFER_ADDRESS_OFFSET: return transferAddress;
+        case TRANSFER_FIFO_OFFSET: return transferFifo;
+        case CONTROL_OFFSET: return control;
+        }
+        return 0;
+    }
+
+    public void writeRegister(int offset, int value) {
+        switch (offset) {
+        case TRANSFER_ADDRESS_OFFSET:
+            transferAddress = value;
+            break;
+        case TRANSFER_FIFO_OFFSET:
+            transferFifo = value;
+            break;
+        case CONTROL_OFFSET:
+            control = value;
+            break;
+        }
 
-}
\ No newline at end of file
+        // System.out.printf("Unimplemented SPU writeShort 0x1F80%04X=%04X\n", offset, value);
+    }
+}
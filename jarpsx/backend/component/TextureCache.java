@@ -0,0 +1,179 @@
+package jarpsx.backend.component;
+
+/*
+ * Texture pages expanded to one 16-bit texel per int, 256x256 per entry and keyed
+ * by page, color depth and CLUT. VRAM is split into 32 blocks of 64x256 words that
+ * carry a generation counter bumped by every write. An entry stores the sum of the
+ * generations of the blocks it was expanded from, counters only grow so the entry
+ * is stale as soon as that sum changes. A stale entry is only expanded again once
+ * its blocks went unwritten between two requests, pages that are drawn to while
+ * being sampled keep going through lookupTexture instead.
+ */
+class TextureCache {
+    private static final int CAPACITY = 32;
+    private static final int BLOCKS_X = 16;
+
+    private class Entry {
+        int key;
+        int[] texels;
+        long stamp;
+        long pendingStamp;
+        long lastUse;
+    }
+
+    private int[] vram;
+    private long[] blockGenerations;
+    private Entry[] entries;
+    private int entryCount;
+    private long useCounter;
+    private Entry lastEntry;
+
+    TextureCache(int[] vram) {
+        this.vram = vram;
+        blockGenerations = new long[BLOCKS_X * 2];
+        entries = new Entry[CAPACITY];
+        entryCount = 0;
+        useCounter = 0;
+        lastEntry = null;
+    }
+
+    void invalidate(int x, int y) {
+        blockGenerations[(y >> 8) * BLOCKS_X + (x >> 6)]++;
+    }
+
+    /* Marks every block touching the inclusive rectangle x1, y1, x2, y2 as written */
+    void invalidate(int x1, int y1, int x2, int y2) {
+        for (int blockY = y1 >> 8; blockY <= y2 >> 8; blockY++) {
+            for (int blockX = x1 >> 6; blockX <= x2 >> 6; blockX++)
+                blockGenerations[blockY * BLOCKS_X + blockX]++;
+        }
+    }
+
+    private static int getPageWidth(int colorDepth) {
+        return 64 << Integer.min(colorDepth, 2);
+    }
+
+    private static int getClutWidth(int colorDepth) {
+        return colorDepth == 0 ? 16 : 256;
+    }
+
+    /* Pages or palettes running past the right edge of VRAM are left to lookupTexture */
+    static boolean isCacheable(int texpageX, int colorDepth, int clut) {
+        if (texpageX * 64 + getPageWidth(colorDepth) > 1024)
+            return false;
+        return colorDepth >= 2 || (clut & 0x3F) * 16 + getClutWidth(colorDepth) <= 1024;
+    }
+
+    private static int getKey(int texpageX, int texpageY, int colorDepth, int clut) {
+        colorDepth = Integer.min(colorDepth, 2);
+        return (colorDepth >= 2 ? 0 : clut << 8) | colorDepth << 5 | texpageY << 4 | texpageX;
+    }
+
+    private long getStamp(int texpageX, int texpageY, int colorDepth, int clut) {
+        long stamp = 0;
+        int pageBlocks = getPageWidth(colorDepth) >> 6;
+        for (int i = 0; i < pageBlocks; i++)
+            stamp += blockGenerations[texpageY * BLOCKS_X + texpageX + i];
+
+        if (colorDepth < 2) {
+            int clutX = (clut & 0x3F) * 16;
+            int clutY = (clut >>> 6) & 511;
+            for (int blockX = clutX >> 6; blockX <= (clutX + getClutWidth(colorDepth) - 1) >> 6; blockX++)
+                stamp += blockGenerations[(clutY >> 8) * BLOCKS_X + blockX];
+        }
+        return stamp;
+    }
+
+    private Entry find(int key) {
+        if (lastEntry != null && lastEntry.key == key)
+            return lastEntry;
+        for (int i = 0; i < entryCount; i++) {
+            if (entries[i].key == key) {
+                lastEntry = entries[i];
+                lastEntry.lastUse = ++useCounter;
+                return lastEntry;
+            }
+        }
+        return null;
+    }
+
+    /* A free entry while there is room, otherwise the least recently used one */
+    private Entry allocate(int key) {
+        Entry entry;
+        if (entryCount < CAPACITY) {
+            entry = new Entry();
+            entry.texels = new int[256 * 256];
+            entries[entryCount++] = entry;
+        } else {
+            entry = entries[0];
+            for (int i = 1; i < CAPACITY; i++) {
+                if (entries[i].lastUse < entry.lastUse)
+                    entry = entries[i];
+            }
+        }
+
+        entry.key = key;
+        entry.pendingStamp = -1;
+        entry.lastUse = ++useCounter;
+        lastEntry = entry;
+        return entry;
+    }
+
+    /* Whether the following get reads VRAM to expand the entry */
+    boolean willExpand(int texpageX, int texpageY, int colorDepth, int clut) {
+        Entry entry = find(getKey(texpageX, texpageY, colorDepth, clut));
+        if (entry == null)
+            return true;
+        long stamp = getStamp(texpageX, texpageY, colorDepth, clut);
+        return entry.stamp != stamp && entry.pendingStamp == stamp;
+    }
+
+    /* Texels of a page indexed by v << 8 | u, null while the page keeps changing */
+    int[] get(int texpageX, int texpageY, int colorDepth, int clut) {
+        int key = getKey(texpageX, texpageY, colorDepth, clut);
+        long stamp = getStamp(texpageX, texpageY, colorDepth, clut);
+        Entry entry = find(key);
+        if (entry == null) {
+            entry = allocate(key);
+        } else if (entry.stamp == stamp) {
+            return entry.texels;
+        } else if (entry.pendingStamp != stamp) {
+            entry.pendingStamp = stamp;
+            return null;
+        }
+
+        expand(entry.texels, texpageX, texpageY, colorDepth, clut);
+        entry.stamp = stamp;
+        return entry.texels;
+    }
+
+    private void expand(int[] texels, int texpageX, int texpageY, int colorDepth, int clut) {
+        int pageOffset = texpageY * 256 * 1024 + texpageX * 64;
+        int clutOffset = ((clut >>> 6) & 511) * 1024 + (clut & 0x3F) * 16;
+        for (int v = 0; v < 256; v++) {
+            int row = pageOffset + v * 1024;
+            int texel = v << 8;
+            switch (colorDepth) {
+            case 0:
+                for (int i = 0; i < 64; i++) {
+                    int word = vram[row + i];
+                    texels[texel++] = vram[clutOffset + (word & 0xF)];
+                    texels[texel++] = vram[clutOffset + ((word >>> 4) & 0xF)];
+                    texels[texel++] = vram[clutOffset + ((word >>> 8) & 0xF)];
+                    texels[texel++] = vram[clutOffset + ((word >>> 12) & 0xF)];
+                }
+                break;
+            case 1:
+                for (int i = 0; i < 128; i++) {
+                    int word = vram[row + i];
+                    texels[texel++] = vram[clutOffset + (word & 0xFF)];
+                    texels[texel++] = vram[clutOffset + ((word >>> 8) & 0xFF)];
+                }
+                break;
+            default:
+                System.arraycopy(vram, row, texels, texel, 256);
+                break;
+            }
+        }
+    }
+}
@@ -1,51 +1,80 @@
 package jarpsx.backend.component;
 
 import jarpsx.backend.Emulator;
+import jarpsx.backend.Memory;
+import jarpsx.backend.Scheduler;
 import jarpsx.backend.component.InterruptController;
 
+/*
+ * Root counters are evaluated lazily. Each counter remembers the cycle it was
+ * last brought up to date and advances by the ticks of its clock source since
+ * then whenever it is accessed. Target and 0xFFFF interrupts are delivered by a
+ * scheduler event placed on the cycle the counter reaches them.
+ */
 public class Timer {
+    private static final int SCANLINES_PER_FRAME = 263;
+
     public class TimerData {
         private int currentValue;
-        private int _value;
         private int mode;
         private int targetValue;
         private int counterIndex;
+        private long syncCycles;
+        private long tickRemainder;
+        private int event;
         boolean once = false;
         public TimerData(int counter) {
             counterIndex = counter;
             targetValue = 0;
             mode = 0;
             currentValue = 0;
+            syncCycles = 0L;
+            tickRemainder = 0L;
+            event = emulator.scheduler.createEvent(Scheduler.EVENT_TIMER, null);
         }
 
         public int readValue() {
+            sync();
             return currentValue & 0xFFFF;
         }
 
         public int readMode() {
+            sync();
             int value = mode;
             mode &= ~((1 << 11) | (1 << 12));
             return value;
         }
-        
+
         public int readTarget() {
             return targetValue;
         }
 
         public void writeValue(int value) {
+            sync();
             currentValue = value & 0xFFFF;
+            scheduleInterrupt();
         }
 
         public void writeMode(int mode) {
-            this.mode = mode & 0xFFFF;
+            sync();
+            // Writing the mode restarts the counter and clears a pending IRQ request
+            this.mode = (mode & 0x3FF) | (1 << 10);
+            currentValue = 0;
+            tickRemainder = 0L;
             once = false;
+            scheduleInterrupt();
         }
 
         public void writeTarget(int target) {
+            sync();
             targetValue = target & 0xFFFF;
+            scheduleInterrupt();
         }
 
         public void triggerInterrupt() {
+            if (once)
+                return;
+
             mode &= ~(1 << 10);
             if ((mode & (1 << 6)) == 0) {
                 once = true;
@@ -54,53 +83,124 @@ public class Timer {
             emulator.interruptController.service(InterruptController.IRQ_TMR0 + counterIndex);
         }
 
-        public void step() {
-            int value = readValue();
-            boolean resetCounterTarget = (mode & (1 << 3)) != 0;
-            boolean irqTarget = (mode & (1 << 4)) != 0;
-            boolean irqFFFF = (mode & (1 << 5)) != 0;
-            boolean syncEnable = (mode & 1) != 0;
-            int clockSource = (1 >>> 8) & 3;
-
-            if (syncEnable) {
-                switch (counterIndex) {
-                case 2:
-                    if (mode != 0) {
-                        System.out.printf("Hello world %x", mode);
-                        System.exit(1);
-                    }
-                }
-            }
+        private boolean isPaused() {
+            // Counter 2 sync modes 0 and 3 stop the counter, counters 0/1 free run
+            if (counterIndex != 2 || (mode & 1) == 0)
+                return false;
+            int syncMode = (mode >>> 1) & 3;
+            return syncMode == 0 || syncMode == 3;
+        }
+
+        /* Clock source rate in ticks per CPU cycle, as numerator and denominator */
+        private long tickNumerator() {
+            int clockSource = (mode >>> 8) & 3;
+            if (counterIndex == 0 && (clockSource & 1) != 0)
+                return 11; // Dotclock, the GPU runs at 11/7 of the CPU clock
+            return 1;
+        }
 
-            _value += 1;
+        private long tickDenominator() {
+            int clockSource = (mode >>> 8) & 3;
             switch (counterIndex) {
             case 0:
+                return (clockSource & 1) != 0 ? 7 * emulator.gpu.getDotClockDivider() : 1;
             case 1:
-                currentValue = (_value >>> 4) & 0xFFFF;
-                break;
+                return (clockSource & 1) != 0 ? getCyclesPerScanline() : 1;
             case 2:
-                currentValue = (_value) & 0xFFFF;
-                break;
+                return (clockSource & 2) != 0 ? 8 : 1;
             }
-            if (value == 0xFFFF) {
-                if (irqFFFF) {
-                    triggerInterrupt();
-                }
+            return 1;
+        }
 
-                mode |= 1 << 12;
-                _value = 0;
-            }
+        /* Value after which the counter goes back to 0 on its current lap */
+        private int getWrapValue() {
+            boolean resetOnTarget = (mode & (1 << 3)) != 0;
+            return resetOnTarget && currentValue <= targetValue ? targetValue : 0xFFFF;
+        }
 
-            if (value == targetValue) {
-                if (resetCounterTarget) {
-                    _value = 0;
+        private void advance(long ticks) {
+            boolean resetOnTarget = (mode & (1 << 3)) != 0;
+            boolean reachedTarget = false;
+            boolean reachedFFFF = false;
+
+            while (ticks > 0) {
+                int wrapValue = getWrapValue();
+                long ticksToWrap = wrapValue - currentValue + 1L;
+
+                if (currentValue < targetValue && targetValue <= wrapValue && ticks >= targetValue - currentValue)
+                    reachedTarget = true;
+                if (wrapValue == 0xFFFF && currentValue < 0xFFFF && ticks >= 0xFFFF - currentValue)
+                    reachedFFFF = true;
+                if (ticks < ticksToWrap) {
+                    currentValue += (int)ticks;
+                    break;
                 }
 
-                if (irqTarget) {
-                    triggerInterrupt();
+                ticks -= ticksToWrap;
+                currentValue = 0;
+                if (targetValue == 0)
+                    reachedTarget = true;
+
+                // Whole laps visit every value, only the remainder matters after that
+                long period = (resetOnTarget ? targetValue : 0xFFFF) + 1L;
+                if (ticks >= period) {
+                    reachedTarget = true;
+                    reachedFFFF |= !resetOnTarget || targetValue == 0xFFFF;
+                    ticks %= period;
                 }
+            }
+
+            if (reachedTarget) {
                 mode |= 1 << 11;
+                if ((mode & (1 << 4)) != 0)
+                    triggerInterrupt();
             }
+
+            if (reachedFFFF) {
+                mode |= 1 << 12;
+                if ((mode & (1 << 5)) != 0)
+                    triggerInterrupt();
+            }
+        }
+
+        public void sync() {
+            long cyclesElapsed = emulator.mips.getCyclesElapsed();
+            long elapsed = cyclesElapsed - syncCycles;
+            syncCycles = cyclesElapsed;
+            if (elapsed <= 0 || isPaused())
+                return;
+
+            long denominator = tickDenominator();
+            long scaled = elapsed * tickNumerator() + tickRemainder;
+            tickRemainder = scaled % denominator;
+            advance(scaled / denominator);
+        }
+
+        /* Places the counter event on the cycle the next enabled IRQ condition is reached */
+        private void scheduleInterrupt() {
+            boolean irqTarget = (mode & (1 << 4)) != 0;
+            boolean irqFFFF = (mode & (1 << 5)) != 0;
+            int wrapValue = getWrapValue();
+            long ticks = Long.MAX_VALUE;
+
+            if (irqTarget) {
+                if (currentValue < targetValue && targetValue <= wrapValue)
+                    ticks = targetValue - currentValue;
+                else
+                    ticks = wrapValue - currentValue + 1L + targetValue;
+            }
+
+            if (irqFFFF && wrapValue == 0xFFFF)
+                ticks = Math.min(ticks, currentValue < 0xFFFF ? 0xFFFF - currentValue : 0x10000);
+
+            if (ticks == Long.MAX_VALUE || once || isPaused()) {
+                emulator.scheduler.cancel(event);
+                return;
+            }
+
+            long numerator = tickNumerator();
+            long cycles = (ticks * tickDenominator() - tickRemainder + numerator - 1) / numerator;
+            emulator.scheduler.schedule(event, syncCycles + Math.max(cycles, 1L));
         }
     }
 
@@ -112,15 +212,33 @@ public class Timer {
         timerData = new TimerData[3];
         for (int i = 0; i < 3; i++)
             timerData[i] = new TimerData(i);
+
+        emulator.scheduler.registerEventCallback(Scheduler.EVENT_TIMER, (userdata) -> {
+            for (int i = 0; i < 3; i++) {
+                timerData[i].sync();
+                timerData[i].scheduleInterrupt();
+            }
+        });
+
+        for (int i = 0; i < 3; i++) {
+            TimerData data = timerData[i];
+            int base = 0x1100 + i * 0x10;
+            for (int width = Memory.IO_SHORT; width <= Memory.IO_INT; width <<= 1) {
+                emulator.memory.mapIORead(width, base + 0, (offset) -> data.readValue());
+                emulator.memory.mapIORead(width, base + 4, (offset) -> data.readMode());
+                emulator.memory.mapIORead(width, base + 8, (offset) -> data.readTarget());
+                emulator.memory.mapIOWrite(width, base + 0, (offset, value) -> data.writeValue(value & 0xFFFF));
+                emulator.memory.mapIOWrite(width, base + 4, (offset, value) -> data.writeMode(value & 0xFFFF));
+                emulator.memory.mapIOWrite(width, base + 8, (offset, value) -> data.writeTarget(value & 0xFFFF));
+            }
+        }
     }
-    
+
     public TimerData getTimer(int index) {
         return timerData[index];
     }
-    
-    public void step() {
-        timerData[0].step();
-        timerData[1].step();
-        timerData[2].step();
+
+    private int getCyclesPerScanline() {
+        return Emulator.VBLANK_CYCLES / SCANLINES_PER_FRAME;
     }
-}
\ No newline at end of file
+}
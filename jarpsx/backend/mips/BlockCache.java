@@ -0,0 +1,352 @@
+package jarpsx.backend.mips;
+
+import jarpsx.backend.Emulator;
+import jarpsx.backend.PSXIntegerConstants;
+import jarpsx.backend.mips.Instruction;
+import jarpsx.backend.mips.Interpreter;
+
+/*
+ * Basic blocks decoded once and keyed by physical PC. The cached interpreter
+ * still executes one instruction per MIPS.step() so interrupts, branch delay
+ * slots and load delays keep the exact same per-step handling, it just skips
+ * the memory fetch, decode and executor lookup.
+ *
+ * Short self loops that only load memory and compute on registers are marked as
+ * idle loop candidates. Once a whole iteration ran without a read of changing I/O
+ * state, every further iteration is identical until the next scheduler event, so
+ * the cycles up to that event are skipped.
+ */
+public class BlockCache {
+    public static final int PAGE_SHIFT = 12;
+    private static final int MAX_BLOCK_LENGTH = 64;
+    private static final int BIOS_PHYSICAL_ADDRESS = 0x1FC0_0000;
+    private static final int MAX_IDLE_LOOP_LENGTH = 16;
+
+    class Block {
+        int address;
+        int length;
+        Instruction[] instructions;
+        Interpreter.Execution[] handlers;
+        int executionCount;
+        boolean uncompilable;
+        Recompiler.CompiledBlock compiled;
+        int compiledPC;
+        int compiledLength;
+        boolean idleLoop;
+
+        Block(int address, int length) {
+            this.address = address;
+            this.length = length;
+            instructions = new Instruction[length];
+            handlers = new Interpreter.Execution[length];
+        }
+    }
+
+    private Emulator emulator;
+    private Block[] ramBlocks;
+    private Block[] biosBlocks;
+    private boolean[] ramCodePages;
+    private int[] ramPageInvalidations;
+    private boolean codeInvalidated;
+    private Instruction uncachedInstruction;
+    private Instruction[] decodedInstructions;
+
+    private Block currentBlock;
+    private int currentIndex;
+    private int nextPC;
+
+    private Block idleBlock;
+    private long idleCycles;
+    private long idleReads;
+    private long idleEarly;
+
+    public BlockCache(Emulator emulator) {
+        this.emulator = emulator;
+        ramBlocks = new Block[PSXIntegerConstants.RAM_SIZE.getInt() >>> 2];
+        biosBlocks = new Block[PSXIntegerConstants.BIOS_SIZE.getInt() >>> 2];
+        ramCodePages = new boolean[PSXIntegerConstants.RAM_SIZE.getInt() >>> PAGE_SHIFT];
+        ramPageInvalidations = new int[ramCodePages.length];
+        uncachedInstruction = new Instruction(0);
+        decodedInstructions = new Instruction[MAX_BLOCK_LENGTH];
+        currentBlock = null;
+    }
+
+    private static boolean isBlockEnd(Instruction instruction) {
+        switch (instruction.opcode()) {
+        case 0x00:
+            switch (instruction.functor()) {
+            case 0x08: // JR
+            case 0x09: // JALR
+            case 0x0C: // SYSCALL
+            case 0x0D: // BREAK
+                return true;
+            }
+            return false;
+        case 0x01: // BcondZ
+        case 0x02: // J
+        case 0x03: // JAL
+        case 0x04: // BEQ
+        case 0x05: // BNE
+        case 0x06: // BLEZ
+        case 0x07: // BGTZ
+            return true;
+        }
+        return false;
+    }
+
+    private Block decodeBlock(int pc, int physical) {
+        int pageEnd = (physical | ((1 << PAGE_SHIFT) - 1)) + 1;
+        int length = 0;
+        boolean delaySlot = false;
+
+        while (length < MAX_BLOCK_LENGTH && physical + length * 4 < pageEnd) {
+            Instruction instruction = new Instruction(emulator.memory.readInt(pc + length * 4));
+            decodedInstructions[length++] = instruction;
+
+            if (delaySlot)
+                break;
+            if (isBlockEnd(instruction)) {
+                if (instruction.opcode() == 0x00 && instruction.functor() >= 0x0C) // SYSCALL/BREAK have no delay slot
+                    break;
+                delaySlot = true;
+            }
+        }
+
+        Block block = new Block(physical, length);
+        for (int i = 0; i < length; i++) {
+            block.instructions[i] = decodedInstructions[i];
+            block.handlers[i] = Interpreter.decode(decodedInstructions[i]);
+        }
+        block.idleLoop = isIdleLoop(block, pc);
+        return block;
+    }
+
+    /* Register read mask of an instruction allowed in an idle loop, -1 for anything else */
+    private static int getIdleLoopReads(Instruction instruction) {
+        int rs = 1 << instruction.rs();
+        int rt = 1 << instruction.rt();
+        switch (instruction.opcode()) {
+        case 0x00:
+            switch (instruction.functor()) {
+            case 0x00: case 0x02: case 0x03: // SLL, SRL, SRA
+                return rt;
+            case 0x04: case 0x06: case 0x07: // SLLV, SRLV, SRAV
+            case 0x21: case 0x23: case 0x24: case 0x25: case 0x26: case 0x27: // ADDU, SUBU, AND, OR, XOR, NOR
+            case 0x2A: case 0x2B: // SLT, SLTU
+                return rs | rt;
+            }
+            return -1;
+        case 0x01: // BLTZ, BGEZ, the linking forms write r31
+            return instruction.rt() <= 1 ? rs : -1;
+        case 0x02: // J
+        case 0x0F: // LUI
+            return 0;
+        case 0x04: case 0x05: // BEQ, BNE
+            return rs | rt;
+        case 0x06: case 0x07: // BLEZ, BGTZ
+        case 0x09: case 0x0A: case 0x0B: case 0x0C: case 0x0D: case 0x0E: // ADDIU, SLTI, SLTIU, ANDI, ORI, XORI
+        case 0x20: case 0x21: case 0x23: case 0x24: case 0x25: // LB, LH, LW, LBU, LHU
+            return rs;
+        }
+        return -1;
+    }
+
+    private static int getIdleLoopWrite(Instruction instruction) {
+        switch (instruction.opcode()) {
+        case 0x00: return instruction.rd();
+        case 0x01: case 0x02: case 0x04: case 0x05: case 0x06: case 0x07: return 0;
+        }
+        return instruction.rt();
+    }
+
+    /*
+     * A loop is idle when it branches back to its own start and every register it
+     * reads before writing it is left untouched by the loop, so one iteration is a
+     * function of memory alone. Loaded registers are written one instruction late.
+     */
+    private static boolean isIdleLoop(Block block, int pc) {
+        int length = block.length;
+        if (length < 2 || length > MAX_IDLE_LOOP_LENGTH)
+            return false;
+
+        Instruction branch = block.instructions[length - 2];
+        int branchPC = pc + (length - 2) * 4;
+        int target;
+        switch (branch.opcode()) {
+        case 0x01: case 0x04: case 0x05: case 0x06: case 0x07:
+            target = branchPC + 4 + (branch.signedImmediate() << 2);
+            break;
+        case 0x02:
+            target = ((branchPC + 4) & 0xF000_0000) | (branch.target() << 2);
+            break;
+        default:
+            return false;
+        }
+        if (target != pc)
+            return false;
+
+        int written = 0, allWritten = 0, readBeforeWrite = 0, pendingLoad = 0;
+        for (int i = 0; i < length; i++) {
+            Instruction instruction = block.instructions[i];
+            int reads = getIdleLoopReads(instruction);
+            if (reads == -1 || (i != length - 2 && isBlockEnd(instruction)))
+                return false;
+
+            int write = (1 << getIdleLoopWrite(instruction)) & ~1;
+            readBeforeWrite |= reads & ~written;
+            written |= pendingLoad;
+            pendingLoad = 0;
+            if (instruction.opcode() >= 0x20)
+                pendingLoad = write;
+            else
+                written |= write;
+            allWritten |= write;
+        }
+
+        // A load in the delay slot would land inside the next iteration
+        return pendingLoad == 0 && (readBeforeWrite & allWritten & ~1) == 0;
+    }
+
+    /*
+     * Called on entry to an idle loop candidate. Once an iteration repeated with no
+     * event in between, time skips ahead by whole iterations up to the next event, so
+     * that event still runs before the first instruction that could observe it.
+     */
+    void checkIdleLoop(MIPS mips, Block block) {
+        long cycles = mips.getCyclesElapsed();
+        long reads = emulator.memory.getVolatileReadCount();
+        long early = emulator.scheduler.getEarlyEventCycles();
+
+        if (block == idleBlock && cycles - idleCycles == block.length && reads == idleReads && early == idleEarly
+            && mips.loadDelayCounter == 0 && !mips.branchDelaySet && !mips.previousWriteToSR
+            && !mips.isInterruptPending() && (mips.cop0reg[12].value & 0x10000) == 0) {
+            // Whole iterations only, so the loop is in the same phase as if it had run
+            long skipped = early != Long.MAX_VALUE ? (early - 1 - cycles) / block.length * block.length : 0;
+            if (skipped > 0) {
+                mips.incrementCycles(skipped);
+                cycles += skipped;
+            }
+        }
+
+        idleBlock = block;
+        idleCycles = cycles;
+        idleReads = reads;
+        idleEarly = early;
+    }
+
+    Block lookup(int pc) {
+        int physical = pc & 0x1FFF_FFFF;
+        Block block;
+
+        if (physical < PSXIntegerConstants.RAM_SIZE.getInt()) {
+            int index = physical >>> 2;
+            block = ramBlocks[index];
+            if (block == null) {
+                block = decodeBlock(pc, physical);
+                ramBlocks[index] = block;
+                ramCodePages[physical >>> PAGE_SHIFT] = true;
+            }
+            return block;
+        }
+
+        if (physical >= BIOS_PHYSICAL_ADDRESS && physical < BIOS_PHYSICAL_ADDRESS + PSXIntegerConstants.BIOS_SIZE.getInt()) {
+            int index = (physical - BIOS_PHYSICAL_ADDRESS) >>> 2;
+            block = biosBlocks[index];
+            if (block == null) {
+                block = decodeBlock(pc, physical);
+                biosBlocks[index] = block;
+            }
+            return block;
+        }
+
+        return null;
+    }
+
+    boolean isInsideBlock(int pc) {
+        return currentBlock != null && pc == nextPC;
+    }
+
+    void resetCursor() {
+        currentBlock = null;
+    }
+
+    /* Returns whether code was overwritten since the last call */
+    boolean consumeInvalidation() {
+        boolean invalidated = codeInvalidated;
+        codeInvalidated = false;
+        return invalidated;
+    }
+
+    int getPageInvalidations(int physical) {
+        if (physical >= PSXIntegerConstants.RAM_SIZE.getInt())
+            return 0;
+        return ramPageInvalidations[physical >>> PAGE_SHIFT];
+    }
+
+    public void execute(MIPS mips) {
+        int pc = mips.PC;
+        Block block = currentBlock;
+        int index = currentIndex;
+
+        if (block == null || pc != nextPC) {
+            block = lookup(pc);
+            index = 0;
+            if (block == null) { // Scratchpad or expansion code is rare enough to run uncached
+                currentBlock = null;
+                uncachedInstruction.setData(mips.readInt(pc));
+                Interpreter.execute(mips, uncachedInstruction);
+                return;
+            }
+            if (block.idleLoop)
+                checkIdleLoop(mips, block);
+        }
+
+        Instruction instruction = block.instructions[index];
+        Interpreter.Execution handler = block.handlers[index];
+        if (++index < block.length) {
+            currentBlock = block;
+            currentIndex = index;
+            nextPC = pc + 4;
+        } else {
+            currentBlock = null;
+        }
+
+        if (handler == null) {
+            Interpreter.execute(mips, instruction);
+            return;
+        }
+
+        handler.execute(mips, instruction);
+    }
+
+    public void invalidate(int ramOffset) {
+        int page = ramOffset >>> PAGE_SHIFT;
+        if (!ramCodePages[page])
+            return;
+
+        int start = (page << PAGE_SHIFT) >>> 2;
+        int end = start + ((1 << PAGE_SHIFT) >>> 2);
+        for (int i = start; i < end; i++)
+            ramBlocks[i] = null;
+
+        ramCodePages[page] = false;
+        ramPageInvalidations[page]++;
+        idleBlock = null;
+        codeInvalidated = true;
+        currentBlock = null;
+    }
+
+    public void invalidateAll() {
+        for (int i = 0; i < ramBlocks.length; i++)
+            ramBlocks[i] = null;
+        for (int i = 0; i < biosBlocks.length; i++)
+            biosBlocks[i] = null;
+        for (int i = 0; i < ramCodePages.length; i++) {
+            ramCodePages[i] = false;
+            ramPageInvalidations[i] = 0;
+        }
+        codeInvalidated = true;
+        currentBlock = null;
+        idleBlock = null;
+    }
+}
@@ -0,0 +1,301 @@
+package jarpsx.backend.mips;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Minimal class file writer used by the recompiler. It emits a final class with
+ * a default constructor and a single instance method. Classes are written as
+ * version 49 so the verifier infers types itself and no StackMapTable is needed.
+ */
+class ClassAssembler {
+    public static final int ICONST_0 = 0x03;
+    public static final int ICONST_1 = 0x04;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int LDC = 0x12;
+    public static final int LDC_W = 0x13;
+    public static final int ILOAD = 0x15;
+    public static final int ALOAD = 0x19;
+    public static final int IALOAD = 0x2E;
+    public static final int ISTORE = 0x36;
+    public static final int ASTORE = 0x3A;
+    public static final int IASTORE = 0x4F;
+    public static final int POP = 0x57;
+    public static final int IADD = 0x60;
+    public static final int ISUB = 0x64;
+    public static final int ISHL = 0x78;
+    public static final int ISHR = 0x7A;
+    public static final int IUSHR = 0x7C;
+    public static final int IAND = 0x7E;
+    public static final int IOR = 0x80;
+    public static final int IXOR = 0x82;
+    public static final int I2B = 0x91;
+    public static final int I2S = 0x93;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9A;
+    public static final int IFLT = 0x9B;
+    public static final int IFGE = 0x9C;
+    public static final int IFGT = 0x9D;
+    public static final int IFLE = 0x9E;
+    public static final int IF_ICMPEQ = 0x9F;
+    public static final int IF_ICMPNE = 0xA0;
+    public static final int IF_ICMPLT = 0xA1;
+    public static final int IF_ICMPGE = 0xA2;
+    public static final int GOTO = 0xA7;
+    public static final int IRETURN = 0xAC;
+    public static final int RETURN = 0xB1;
+    public static final int GETFIELD = 0xB4;
+    public static final int PUTFIELD = 0xB5;
+    public static final int INVOKEVIRTUAL = 0xB6;
+    public static final int INVOKESPECIAL = 0xB7;
+    public static final int INVOKESTATIC = 0xB8;
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_NameAndType = 12;
+
+    public class Label {
+        private int position = -1;
+        private List<Integer> jumps = new ArrayList<Integer>();
+    }
+
+    private ByteArrayOutputStream constantPoolBytes;
+    private DataOutputStream constantPool;
+    private Map<String, Integer> constants;
+    private int constantCount;
+    private ByteArrayOutputStream code;
+    private String className;
+    private String interfaceName;
+    private List<Label> labels;
+
+    public ClassAssembler(String className, String interfaceName) {
+        this.className = className;
+        this.interfaceName = interfaceName;
+        constantPoolBytes = new ByteArrayOutputStream();
+        constantPool = new DataOutputStream(constantPoolBytes);
+        constants = new HashMap<String, Integer>();
+        constantCount = 1;
+        code = new ByteArrayOutputStream();
+        labels = new ArrayList<Label>();
+    }
+
+    private int utf8(String value) {
+        String key = "U" + value;
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+
+        try {
+            constantPool.writeByte(CONSTANT_Utf8);
+            constantPool.writeUTF(value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        constants.put(key, constantCount);
+        return constantCount++;
+    }
+
+    private int reference(int tag, String key, int first, int second) {
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+
+        try {
+            constantPool.writeByte(tag);
+            constantPool.writeShort(first);
+            if (second >= 0)
+                constantPool.writeShort(second);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        constants.put(key, constantCount);
+        return constantCount++;
+    }
+
+    private int classReference(String name) {
+        return reference(CONSTANT_Class, "C" + name, utf8(name), -1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return reference(CONSTANT_NameAndType, "N" + name + ":" + descriptor, utf8(name), utf8(descriptor));
+    }
+
+    private int memberReference(int tag, String owner, String name, String descriptor) {
+        return reference(tag, tag + owner + "." + name + ":" + descriptor, classReference(owner), nameAndType(name, descriptor));
+    }
+
+    private int integer(int value) {
+        String key = "I" + value;
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+
+        try {
+            constantPool.writeByte(CONSTANT_Integer);
+            constantPool.writeInt(value);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        constants.put(key, constantCount);
+        return constantCount++;
+    }
+
+    private void u1(int value) {
+        code.write(value & 0xFF);
+    }
+
+    private void u2(int value) {
+        code.write((value >>> 8) & 0xFF);
+        code.write(value & 0xFF);
+    }
+
+    public void op(int opcode) {
+        u1(opcode);
+    }
+
+    public void iload(int local) {
+        u1(ILOAD);
+        u1(local);
+    }
+
+    public void istore(int local) {
+        u1(ISTORE);
+        u1(local);
+    }
+
+    public void aload(int local) {
+        u1(ALOAD);
+        u1(local);
+    }
+
+    public void astore(int local) {
+        u1(ASTORE);
+        u1(local);
+    }
+
+    public void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            u1(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            u1(BIPUSH);
+            u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            u1(SIPUSH);
+            u2(value);
+        } else {
+            int index = integer(value);
+            if (index <= 0xFF) {
+                u1(LDC);
+                u1(index);
+            } else {
+                u1(LDC_W);
+                u2(index);
+            }
+        }
+    }
+
+    public void field(int opcode, String owner, String name, String descriptor) {
+        u1(opcode);
+        u2(memberReference(CONSTANT_Fieldref, owner, name, descriptor));
+    }
+
+    public void invoke(int opcode, String owner, String name, String descriptor) {
+        u1(opcode);
+        u2(memberReference(CONSTANT_Methodref, owner, name, descriptor));
+    }
+
+    public Label newLabel() {
+        Label label = new Label();
+        labels.add(label);
+        return label;
+    }
+
+    public void jump(int opcode, Label label) {
+        label.jumps.add(code.size());
+        u1(opcode);
+        u2(0);
+    }
+
+    public void bind(Label label) {
+        label.position = code.size();
+    }
+
+    private byte[] resolveCode() {
+        byte[] bytes = code.toByteArray();
+        for (Label label : labels) {
+            for (int jump : label.jumps) {
+                int offset = label.position - jump;
+                if (label.position < 0 || offset != (short)offset)
+                    throw new RuntimeException(String.format("Unresolved recompiler jump in %s", className));
+                bytes[jump + 1] = (byte)(offset >>> 8);
+                bytes[jump + 2] = (byte)offset;
+            }
+        }
+        return bytes;
+    }
+
+    public byte[] assemble(String methodName, String methodDescriptor, int maxStack, int maxLocals) {
+        byte[] methodCode = resolveCode();
+        int thisClass = classReference(className);
+        int superClass = classReference("java/lang/Object");
+        int implemented = classReference(interfaceName);
+        int objectInit = memberReference(CONSTANT_Methodref, "java/lang/Object", "<init>", "()V");
+        int initName = utf8("<init>");
+        int initDescriptor = utf8("()V");
+        int name = utf8(methodName);
+        int descriptor = utf8(methodDescriptor);
+        int codeAttribute = utf8("Code");
+
+        try {
+            ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(classBytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(constantCount);
+            constantPool.flush();
+            out.write(constantPoolBytes.toByteArray());
+            out.writeShort(0x1031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(implemented);
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+
+            byte[] initCode = { (byte)ALOAD, 0, (byte)INVOKESPECIAL, (byte)(objectInit >>> 8), (byte)objectInit, (byte)RETURN };
+            writeMethod(out, initName, initDescriptor, codeAttribute, initCode, 1, 1);
+            writeMethod(out, name, descriptor, codeAttribute, methodCode, maxStack, maxLocals);
+
+            out.writeShort(0); // attributes
+            out.flush();
+            return classBytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeAttribute, byte[] code, int maxStack, int maxLocals) throws IOException {
+        out.writeShort(0x0001); // ACC_PUBLIC
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+}
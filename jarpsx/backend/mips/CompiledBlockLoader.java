@@ -0,0 +1,22 @@
+package jarpsx.backend.mips;
+
+import java.lang.invoke.MethodHandles;
+
+import jarpsx.backend.mips.Recompiler;
+
+/*
+ * Defines recompiled blocks as hidden classes in this package, they can be
+ * unloaded as soon as the block cache drops them.
+ */
+class CompiledBlockLoader {
+    private MethodHandles.Lookup lookup;
+
+    CompiledBlockLoader() {
+        lookup = MethodHandles.lookup();
+    }
+
+    Recompiler.CompiledBlock define(byte[] classData) throws ReflectiveOperationException {
+        Class<?> blockClass = lookup.defineHiddenClass(classData, false).lookupClass();
+        return (Recompiler.CompiledBlock)blockClass.getDeclaredConstructor().newInstance();
+    }
+}
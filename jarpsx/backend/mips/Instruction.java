@@ -2,41 +2,47 @@ package jarpsx.backend.mips;
 
 public class Instruction {
     private int data;
+    private int opcode;
+    private int rs, rt, rd;
+    private int imm5;
+    private int functor;
+    private int target;
+    private int signedImmediate;
 
     public Instruction(int data) {
-        this.data = data;
+        setData(data);
     }
 
     public int rs() {
-        return (data >>> 21) & 0x1F;
+        return rs;
     }
 
     public int rt() {
-        return (data >>> 16) & 0x1F;
+        return rt;
     }
 
     public int rd() {
-        return (data >>> 11) & 0x1F;
+        return rd;
     }
 
     public int opcode() {
-        return (data >>> 26) & 0x3F;
+        return opcode;
     }
     
     public int imm5() {
-        return (data >>> 6) & 0x1F;
+        return imm5;
     }
 
     public int functor() {
-        return data & 0x3F;
+        return functor;
     }
     
     public int target() {
-        return data & 0x3FFFFFF;
+        return target;
     }
     
     public int signedImmediate() {
-        return (int)(short)(data & 0xFFFF);
+        return signedImmediate;
     }
   
     public int unsignedImmediate() {
@@ -49,5 +55,13 @@ public class Instruction {
     
     public void setData(int data) {
         this.data = data;
+        opcode = (data >>> 26) & 0x3F;
+        rs = (data >>> 21) & 0x1F;
+        rt = (data >>> 16) & 0x1F;
+        rd = (data >>> 11) & 0x1F;
+        imm5 = (data >>> 6) & 0x1F;
+        functor = data & 0x3F;
+        target = data & 0x3FFFFFF;
+        signedImmediate = (int)(short)(data & 0xFFFF);
     }
-}
\ No newline at end of file
+}
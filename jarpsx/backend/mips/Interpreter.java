@@ -6,7 +6,7 @@ import jarpsx.backend.mips.GTEInstruction;
 import jarpsx.backend.mips.Disassembler;
 
 public class Interpreter {
-    private interface Execution {
+    interface Execution {
         public void execute(MIPS mips, Instruction instruction);
     }
     
@@ -591,8 +591,8 @@ public class Interpreter {
         data = mips.readInt(address);
 
         int old = mips.gpr[rt];
-        if (mips.loadDelayCounter == 1 && mips.loadDelayReg[0].index == rt)
-            old = mips.loadDelayReg[0].value;
+        if (mips.loadDelayCounter == 1 && mips.loadDelayIndex0 == rt)
+            old = mips.loadDelayValue0;
 
         result = (old & (0x00FFFFFF >>> offset)) | (data << (24 - offset));
         mips.writeGPRDelayed(rt, result);
@@ -675,8 +675,8 @@ public class Interpreter {
         data = mips.readInt(address);
 
         int old = mips.gpr[rt];
-        if (mips.loadDelayCounter == 1 && mips.loadDelayReg[0].index == rt)
-            old = mips.loadDelayReg[0].value;
+        if (mips.loadDelayCounter == 1 && mips.loadDelayIndex0 == rt)
+            old = mips.loadDelayValue0;
 
         result = (old & (0xFFFFFF00 << (24 - offset))) | (data >>> offset);
         mips.writeGPRDelayed(rt, result);
@@ -836,6 +836,12 @@ public class Interpreter {
         return functorExecutor[instruction.functor()];
     }
     
+    static Execution decode(Instruction instruction) {
+        if (instruction.opcode() == 0 && getFunctorExecutor(instruction) != null)
+            return getFunctorExecutor(instruction);
+        return getExecutor(instruction);
+    }
+
     public static void execute(MIPS mips, Instruction instruction) {
         Execution exec = getExecutor(instruction);
         if (exec == null) {
@@ -5,6 +5,7 @@ import java.nio.file.Paths;
 
 import jarpsx.backend.Emulator;
 import jarpsx.backend.mips.Interpreter;
+import jarpsx.backend.mips.BlockCache;
 
 public class MIPS {
     private static final int[] exceptionAddress_BEV0 = { 0xBFC0_0000, 0x8000_0000, 0x8000_0040, 0x8000_0080 };
@@ -22,6 +23,11 @@ public class MIPS {
     public static final int Exception_ReservedInstruction = 0x0A;
     public static final int Exception_CoprocessorUnused = 0x0B;
     public static final int Exception_ArithmeticOverflow = 0x0C;
+    public static final int BACKEND_INTERPRETER = 0;
+    public static final int BACKEND_CACHED_INTERPRETER = 1;
+    public static final int BACKEND_RECOMPILER = 2;
+    private static final int TTY_HOOK_ADDRESS = 0xB0;
+    private static final int SIDELOAD_HOOK_ADDRESS = 0x80030000;
     public static final int ZERO = 0;
     public static final int AT = 1;
     public static final int V0 = 2;
@@ -55,6 +61,9 @@ public class MIPS {
     public static final int FP = 30;
     public static final int RA = 31;
     private Instruction currentInstruction;
+    private BlockCache blockCache;
+    private Recompiler recompiler;
+    private int backend;
     private Emulator emulator;
     private long cyclesElapsed;
     public int[] gpr;
@@ -66,17 +75,14 @@ public class MIPS {
     public Cop0Register[] cop0reg;
     public int[] gteReg;
     public int loadDelayCounter;
-    public LoadDelayRegister[] loadDelayReg;
+    /* Two load delay slots, slot 0 is the load that lands after the current instruction */
+    public int loadDelayIndex0, loadDelayValue0;
+    public int loadDelayIndex1, loadDelayValue1;
     public boolean previousWriteToSR = false;
     public boolean linkSet;
     public int linkIndex;
     public boolean requiredToCancel = false;
     public int cancelRegisterIndex = 0;
-    public class LoadDelayRegister {
-        public int value;
-        public int index;
-    }
-
     public class Cop0Register {
         public String name;
         public int value;
@@ -120,6 +126,10 @@ public class MIPS {
         cyclesElapsed = 0L;
 
         currentInstruction = new Instruction(0);
+        blockCache = new BlockCache(emulator);
+        emulator.memory.setBlockCache(blockCache);
+        recompiler = new Recompiler(emulator, this, blockCache);
+        backend = BACKEND_INTERPRETER;
         cop0reg = new Cop0Register[64];
         cop0reg[3] = new Cop0Register("BPC", 0, 3);
         cop0reg[5] = new Cop0Register("BDA", 0, 5);
@@ -140,39 +150,40 @@ public class MIPS {
         exceptionBranchDelay = false;
         PC = 0xBFC00000;
 
-        loadDelayReg = new LoadDelayRegister[2];
         loadDelayCounter = 0;
+        loadDelayIndex0 = loadDelayValue0 = 0;
+        loadDelayIndex1 = loadDelayValue1 = 0;
         gpr = new int[32];
         for (int i = 0; i < 32; i++)
             gpr[i] = 0;        
     }
     
+    private void shiftLoadDelaySlots() {
+        loadDelayIndex0 = loadDelayIndex1;
+        loadDelayValue0 = loadDelayValue1;
+        --loadDelayCounter;
+    }
+
     public void handleLoadDelaySlot(boolean loadDelaySet) {
         if (loadDelaySet) {
             if (branchDelaySet) {
-                if (linkSet && linkIndex == loadDelayReg[0].index) {
-                    loadDelayReg[0] = loadDelayReg[1];
-                    loadDelayReg[1] = null;
-                    --loadDelayCounter;
+                if (linkSet && linkIndex == loadDelayIndex0) {
+                    shiftLoadDelaySlots();
                     linkSet = false;
                     return;
                 }
             }
             
-            if (requiredToCancel && loadDelayReg[0].index == cancelRegisterIndex) {
-                loadDelayReg[0] = loadDelayReg[1];
-                loadDelayReg[1] = null;
-                --loadDelayCounter;
+            if (requiredToCancel && loadDelayIndex0 == cancelRegisterIndex) {
+                shiftLoadDelaySlots();
                 return;
             }
             
-            if (!(loadDelayCounter == 2 && loadDelayReg[0].index == loadDelayReg[1].index)) { // Does not have a cancelled load delay
-                gpr[loadDelayReg[0].index] = loadDelayReg[0].value;
+            if (!(loadDelayCounter == 2 && loadDelayIndex0 == loadDelayIndex1)) { // Does not have a cancelled load delay
+                gpr[loadDelayIndex0] = loadDelayValue0;
             }
 
-            loadDelayReg[0] = loadDelayReg[1];
-            loadDelayReg[1] = null;
-            --loadDelayCounter;
+            shiftLoadDelaySlots();
         }
     }
     
@@ -183,14 +194,32 @@ public class MIPS {
     }
 
     public void writeGPRDelayed(int index, int data) {
-        loadDelayReg[loadDelayCounter] = new LoadDelayRegister();
-        loadDelayReg[loadDelayCounter].index = index;
-        loadDelayReg[loadDelayCounter].value = data;    
+        if (loadDelayCounter == 0) {
+            loadDelayIndex0 = index;
+            loadDelayValue0 = data;
+        } else {
+            loadDelayIndex1 = index;
+            loadDelayValue1 = data;
+        }
         loadDelayCounter++;
         requiredToCancel = false;
         // gpr[index] = data;
     }
 
+    public void setBackend(int backend) {
+        if (backend != this.backend)
+            blockCache.invalidateAll();
+        this.backend = backend;
+    }
+
+    public int getBackend() {
+        return backend;
+    }
+
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
     public long getCyclesElapsed() {
         return cyclesElapsed;
     }
@@ -263,8 +292,7 @@ public class MIPS {
 
     static public boolean once = true;
     private int x = 0;
-    private Instruction fetchInstruction() {
-        int data = 0;
+    private void handleFetch() {
         if ((PC & 3) != 0) {
             int address = PC;
             triggerException(Exception_AdEL);
@@ -273,7 +301,7 @@ public class MIPS {
         }
         
         switch (PC) {
-        case 0xB0:
+        case TTY_HOOK_ADDRESS:
             switch (gpr[9]) {
             case 0x3f:
                 for (int i = 0; i < 2000; i++) {
@@ -291,7 +319,7 @@ public class MIPS {
                 break;
             }
             break;
-        case 0x80030000:
+        case SIDELOAD_HOOK_ADDRESS:
             try {
                 if (once == false) {
                     // emulator.sideloadPSXExecutable(Paths.get("").toAbsolutePath().toString() + "\\data\\executables\\jakub\\gte\\test-all\\test-all.exe");
@@ -327,7 +355,17 @@ public class MIPS {
             }
             break;
         }
+    }
 
+    /* Compiled blocks skip handleFetch(), so they must not cover a hooked address */
+    boolean hasFetchHook(int physical) {
+        return physical == (TTY_HOOK_ADDRESS & 0x1FFF_FFFF) || physical == (SIDELOAD_HOOK_ADDRESS & 0x1FFF_FFFF);
+    }
+
+    private Instruction fetchInstruction() {
+        int data = 0;
+
+        handleFetch();
         data = readInt(PC);        
         currentInstruction.setData(data);
         return currentInstruction;
@@ -378,13 +416,22 @@ public class MIPS {
         cop0reg[14].setValueGlobal(epc);
     }
 
+    public boolean isInterruptPending() {
+        int interruptMask = cop0reg[12].value & 0xFF00;
+        int interruptPendingFields = cop0reg[13].value & 0xFF00;
+        return (cop0reg[12].value & 1) != 0 && (interruptMask & interruptPendingFields) != 0 && emulator.interruptController.isIrqSet();
+    }
+
+    /* Polled by compiled blocks after memory accesses */
+    public boolean blockExitRequested() {
+        return blockCache.consumeInvalidation() || isInterruptPending();
+    }
+
     public boolean checkForInterrupts() {
         boolean interruptOccured = false;
         boolean previousWriteToSR = this.previousWriteToSR == true;
-        int interruptMask = cop0reg[12].value & 0xFF00;
-        int interruptPendingFields = cop0reg[13].value & 0xFF00;
         
-        if ((cop0reg[12].value & 1) != 0 && (interruptMask & interruptPendingFields) != 0 && emulator.interruptController.isIrqSet()) {
+        if (isInterruptPending()) {
             emulator.interruptController.setIrq(false);
             interruptOccured = true;
             if (previousWriteToSR == false)
@@ -396,15 +443,23 @@ public class MIPS {
     }
 
     public void step() {
+        if (backend == BACKEND_RECOMPILER && recompiler.execute())
+            return;
+
         boolean interruptOccured = checkForInterrupts();
         boolean previousWriteToSR = this.previousWriteToSR == true;
         boolean branchDelaySet = this.branchDelaySet == true;
         boolean loadDelaySet = loadDelayCounter > 0;
 
-        Instruction instruction = fetchInstruction();
-        gpr[0] = 0;
-        
-        Interpreter.execute(this, instruction);
+        if (backend != BACKEND_INTERPRETER) {
+            handleFetch();
+            gpr[0] = 0;
+            blockCache.execute(this);
+        } else {
+            Instruction instruction = fetchInstruction();
+            gpr[0] = 0;
+            Interpreter.execute(this, instruction);
+        }
 
         handleLoadDelaySlot(loadDelaySet);
 
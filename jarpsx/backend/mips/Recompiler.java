@@ -0,0 +1,813 @@
+package jarpsx.backend.mips;
+
+import jarpsx.backend.Emulator;
+import jarpsx.backend.mips.BlockCache;
+import jarpsx.backend.mips.ClassAssembler;
+import jarpsx.backend.mips.Instruction;
+
+/*
+ * Translates hot basic blocks from the block cache into JVM bytecode. Guest
+ * registers live in JVM locals for the duration of a block and are written back
+ * on every exit. Load delays are resolved at compile time, so a block can only
+ * be entered with no pending load or branch and always leaves the CPU in the
+ * exact state the interpreter would have after the same instructions.
+ *
+ * COP0/GTE, SYSCALL/BREAK and anything unknown end the compiled part of a block
+ * and run on the cached interpreter. Address errors and overflow exceptions exit
+ * the block right before the faulting instruction so the interpreter raises them.
+ */
+public class Recompiler {
+    interface CompiledBlock {
+        int execute(MIPS mips);
+    }
+
+    private static final int COMPILE_THRESHOLD = 32;
+    private static final int SMC_INVALIDATION_LIMIT = 64;
+
+    private static final String MIPS_CLASS = "jarpsx/backend/mips/MIPS";
+    private static final String RECOMPILER_CLASS = "jarpsx/backend/mips/Recompiler";
+    private static final String COMPILED_BLOCK_CLASS = "jarpsx/backend/mips/Recompiler$CompiledBlock";
+
+    private static final int LOCAL_MIPS = 1;
+    private static final int LOCAL_GPR = 2;
+    private static final int LOCAL_REGISTER_BASE = 3;
+    private static final int LOCAL_EXIT_PC = 35;
+    private static final int LOCAL_EXIT_COUNT = 36;
+    private static final int LOCAL_EXIT_PENDING_REGISTER = 37;
+    private static final int LOCAL_EXIT_PENDING_VALUE = 38;
+    private static final int LOCAL_EXIT_BRANCH = 39;
+    private static final int LOCAL_EXIT_BRANCH_TARGET = 40;
+    private static final int LOCAL_EXIT_LINK = 41;
+    private static final int LOCAL_PENDING_BASE = 42;
+    private static final int LOCAL_ADDRESS = 44;
+    private static final int LOCAL_TAKEN = 45;
+    private static final int LOCAL_TARGET = 46;
+    private static final int MAX_LOCALS = 47;
+    private static final int MAX_STACK = 8;
+
+    private Emulator emulator;
+    private MIPS mips;
+    private BlockCache blockCache;
+    private CompiledBlockLoader loader;
+
+    /* Per-compile state */
+    private ClassAssembler asm;
+    private ClassAssembler.Label epilogue;
+    private int blockPC;
+    private int blockLength;
+    private boolean hasBranch;
+    private int pendingRegister;
+    private int pendingLocal;
+    private int linkRegister;
+
+    public Recompiler(Emulator emulator, MIPS mips, BlockCache blockCache) {
+        this.emulator = emulator;
+        this.mips = mips;
+        this.blockCache = blockCache;
+        loader = new CompiledBlockLoader();
+    }
+
+    /* Runs a compiled block at the current PC, returns false if the step should be interpreted */
+    public boolean execute() {
+        if (mips.loadDelayCounter != 0 || mips.branchDelaySet || mips.previousWriteToSR)
+            return false;
+        if ((mips.cop0reg[12].value & 0x10000) != 0 || mips.isInterruptPending())
+            return false;
+
+        int pc = mips.PC;
+        if ((pc & 3) != 0 || blockCache.isInsideBlock(pc))
+            return false;
+
+        BlockCache.Block block = blockCache.lookup(pc);
+        if (block == null)
+            return false;
+        if (block.idleLoop)
+            blockCache.checkIdleLoop(mips, block);
+
+        if (block.compiled == null) {
+            if (block.uncompilable || ++block.executionCount < COMPILE_THRESHOLD)
+                return false;
+            compile(block, pc);
+            if (block.compiled == null)
+                return false;
+        }
+
+        if (block.compiledPC != pc)
+            return false;
+
+        // Step up to the next event one instruction at a time so it fires on the exact cycle
+        if (mips.getCyclesElapsed() + block.compiledLength > emulator.scheduler.getEarlyEventCycles())
+            return false;
+
+        blockCache.resetCursor();
+        blockCache.consumeInvalidation();
+        int executed = block.compiled.execute(mips);
+        if (executed == 0)
+            return false;
+        mips.incrementCycles(executed);
+        return true;
+    }
+
+    private static boolean isSupported(Instruction instruction) {
+        switch (instruction.opcode()) {
+        case 0x00:
+            switch (instruction.functor()) {
+            case 0x00: case 0x02: case 0x03: case 0x04: case 0x06: case 0x07: // Shifts
+            case 0x08: case 0x09: // JR, JALR
+            case 0x10: case 0x11: case 0x12: case 0x13: // MFHI, MTHI, MFLO, MTLO
+            case 0x18: case 0x19: case 0x1A: case 0x1B: // MULT, MULTU, DIV, DIVU
+            case 0x20: case 0x21: case 0x22: case 0x23: case 0x24: case 0x25: case 0x26: case 0x27:
+            case 0x2A: case 0x2B: // SLT, SLTU
+                return true;
+            }
+            return false;
+        case 0x01: case 0x02: case 0x03: case 0x04: case 0x05: case 0x06: case 0x07: // Branches
+        case 0x08: case 0x09: case 0x0A: case 0x0B: case 0x0C: case 0x0D: case 0x0E: case 0x0F: // Immediate ALU
+        case 0x20: case 0x21: case 0x22: case 0x23: case 0x24: case 0x25: case 0x26: // Loads
+        case 0x28: case 0x29: case 0x2A: case 0x2B: case 0x2E: // Stores
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isBranch(Instruction instruction) {
+        int opcode = instruction.opcode();
+        if (opcode == 0x00)
+            return instruction.functor() == 0x08 || instruction.functor() == 0x09;
+        return opcode >= 0x01 && opcode <= 0x07;
+    }
+
+    private static boolean isLoad(Instruction instruction) {
+        return instruction.opcode() >= 0x20 && instruction.opcode() <= 0x26;
+    }
+
+    private static boolean isStore(Instruction instruction) {
+        return instruction.opcode() >= 0x28 && instruction.opcode() <= 0x2E;
+    }
+
+    private int compilableLength(BlockCache.Block block) {
+        int length = block.length;
+        int branchIndex = -1;
+
+        for (int i = 0; i < block.length; i++) {
+            Instruction instruction = block.instructions[i];
+            if (!isSupported(instruction) || mips.hasFetchHook(block.address + i * 4)) {
+                length = i;
+                break;
+            }
+            if (branchIndex < 0 && isBranch(instruction))
+                branchIndex = i;
+        }
+
+        if (branchIndex >= 0) {
+            Instruction branch = block.instructions[branchIndex];
+            if (length < branchIndex + 2 || isBranch(block.instructions[branchIndex + 1])) {
+                length = branchIndex;
+            } else if (branch.opcode() == 0x01 && (branch.rt() & 0x1E) == 0x10 && branchIndex > 0) {
+                // BLTZAL/BGEZAL only cancel a pending load to RA when taken
+                Instruction previous = block.instructions[branchIndex - 1];
+                if (isLoad(previous) && previous.rt() == 31)
+                    length = branchIndex - 1;
+            }
+        }
+        return length;
+    }
+
+    private void compile(BlockCache.Block block, int pc) {
+        if (blockCache.getPageInvalidations(block.address) >= SMC_INVALIDATION_LIMIT) {
+            block.uncompilable = true;
+            return;
+        }
+
+        int length = compilableLength(block);
+        if (length == 0) {
+            block.uncompilable = true;
+            return;
+        }
+
+        blockPC = pc;
+        blockLength = length;
+        hasBranch = length >= 2 && isBranch(block.instructions[length - 2]);
+        pendingRegister = 0;
+        pendingLocal = 0;
+        linkRegister = 0;
+
+        boolean[] used = new boolean[32];
+        for (int i = 0; i < length; i++) {
+            Instruction instruction = block.instructions[i];
+            used[instruction.rs()] = true;
+            used[instruction.rt()] = true;
+            used[instruction.rd()] = true;
+        }
+        used[31] = true;
+        used[0] = false;
+
+        asm = new ClassAssembler(String.format("jarpsx/backend/mips/CompiledBlock_%08X", pc), COMPILED_BLOCK_CLASS);
+        epilogue = asm.newLabel();
+        emitPrologue(used);
+        for (int i = 0; i < length; i++) {
+            Instruction instruction = block.instructions[i];
+            if (hasBranch && i == length - 2)
+                emitBranch(instruction, i);
+            else
+                emitInstruction(instruction, i);
+        }
+        emitBlockEnd();
+        emitEpilogue(used);
+
+        try {
+            block.compiled = loader.define(asm.assemble("execute", "(L" + MIPS_CLASS + ";)I", MAX_STACK, MAX_LOCALS));
+            block.compiledPC = pc;
+            block.compiledLength = length;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.out.printf("Recompiler failed on block %08X: %s\n", pc, e.getMessage());
+            block.uncompilable = true;
+        }
+        asm = null;
+    }
+
+    private static int registerLocal(int register) {
+        return LOCAL_REGISTER_BASE + register;
+    }
+
+    private void loadRegister(int register) {
+        if (register == 0)
+            asm.pushInt(0);
+        else
+            asm.iload(registerLocal(register));
+    }
+
+    private void storeRegister(int register) {
+        if (register == 0)
+            asm.op(ClassAssembler.POP);
+        else
+            asm.istore(registerLocal(register));
+    }
+
+    private void loadMIPS() {
+        asm.aload(LOCAL_MIPS);
+    }
+
+    private void invokeMIPS(String name, String descriptor) {
+        asm.invoke(ClassAssembler.INVOKEVIRTUAL, MIPS_CLASS, name, descriptor);
+    }
+
+    private void invokeHelper(String name, String descriptor) {
+        asm.invoke(ClassAssembler.INVOKESTATIC, RECOMPILER_CLASS, name, descriptor);
+    }
+
+    private void emitPrologue(boolean[] used) {
+        loadMIPS();
+        asm.field(ClassAssembler.GETFIELD, MIPS_CLASS, "gpr", "[I");
+        asm.astore(LOCAL_GPR);
+        for (int register = 1; register < 32; register++) {
+            if (!used[register])
+                continue;
+            asm.aload(LOCAL_GPR);
+            asm.pushInt(register);
+            asm.op(ClassAssembler.IALOAD);
+            asm.istore(registerLocal(register));
+        }
+
+        // The verifier wants every local assigned before the first branch that merges into the epilogue
+        for (int local = LOCAL_EXIT_PC; local < MAX_LOCALS; local++) {
+            asm.pushInt(0);
+            asm.istore(local);
+        }
+    }
+
+    private void emitEpilogue(boolean[] used) {
+        asm.bind(epilogue);
+        for (int register = 1; register < 32; register++) {
+            if (!used[register])
+                continue;
+            asm.aload(LOCAL_GPR);
+            asm.pushInt(register);
+            asm.iload(registerLocal(register));
+            asm.op(ClassAssembler.IASTORE);
+        }
+
+        loadMIPS();
+        asm.iload(LOCAL_EXIT_PC);
+        asm.field(ClassAssembler.PUTFIELD, MIPS_CLASS, "PC", "I");
+
+        ClassAssembler.Label noPendingLoad = asm.newLabel();
+        asm.iload(LOCAL_EXIT_PENDING_REGISTER);
+        asm.jump(ClassAssembler.IFEQ, noPendingLoad);
+        loadMIPS();
+        asm.iload(LOCAL_EXIT_PENDING_REGISTER);
+        asm.iload(LOCAL_EXIT_PENDING_VALUE);
+        invokeMIPS("writeGPRDelayed", "(II)V");
+        asm.bind(noPendingLoad);
+
+        ClassAssembler.Label noBranch = asm.newLabel();
+        asm.iload(LOCAL_EXIT_BRANCH);
+        asm.jump(ClassAssembler.IFEQ, noBranch);
+        loadMIPS();
+        asm.iload(LOCAL_EXIT_BRANCH_TARGET);
+        invokeMIPS("setJump", "(I)V");
+        asm.iload(LOCAL_EXIT_LINK);
+        asm.jump(ClassAssembler.IFEQ, noBranch);
+        loadMIPS();
+        asm.pushInt(1);
+        asm.field(ClassAssembler.PUTFIELD, MIPS_CLASS, "linkSet", "Z");
+        loadMIPS();
+        asm.iload(LOCAL_EXIT_LINK);
+        asm.field(ClassAssembler.PUTFIELD, MIPS_CLASS, "linkIndex", "I");
+        asm.bind(noBranch);
+
+        asm.iload(LOCAL_EXIT_COUNT);
+        asm.op(ClassAssembler.IRETURN);
+    }
+
+    /* Leaves the block with the load of the given register still in its delay slot */
+    private void emitExit(int pc, int count, int register, int valueLocal) {
+        asm.pushInt(pc);
+        asm.istore(LOCAL_EXIT_PC);
+        asm.pushInt(count);
+        asm.istore(LOCAL_EXIT_COUNT);
+        asm.pushInt(register);
+        asm.istore(LOCAL_EXIT_PENDING_REGISTER);
+        if (register != 0) {
+            asm.iload(valueLocal);
+            asm.istore(LOCAL_EXIT_PENDING_VALUE);
+        }
+        asm.jump(ClassAssembler.GOTO, epilogue);
+    }
+
+    /* Leaves the block right before instruction index so the interpreter runs it */
+    private void emitBailout(int index) {
+        if (hasBranch && index == blockLength - 1) {
+            asm.iload(LOCAL_TAKEN);
+            asm.istore(LOCAL_EXIT_BRANCH);
+            asm.iload(LOCAL_TARGET);
+            asm.istore(LOCAL_EXIT_BRANCH_TARGET);
+            asm.pushInt(linkRegister);
+            asm.istore(LOCAL_EXIT_LINK);
+        }
+        emitExit(blockPC + index * 4, index, pendingRegister, pendingLocal);
+    }
+
+    private void emitBailoutIf(int opcode, int index) {
+        ClassAssembler.Label skip = asm.newLabel();
+        asm.jump(opcode, skip);
+        emitBailout(index);
+        asm.bind(skip);
+    }
+
+    private void emitAddress(Instruction instruction) {
+        loadRegister(instruction.rs());
+        asm.pushInt(instruction.signedImmediate());
+        asm.op(ClassAssembler.IADD);
+        asm.istore(LOCAL_ADDRESS);
+    }
+
+    private void emitAlignmentCheck(int mask, int index) {
+        asm.iload(LOCAL_ADDRESS);
+        asm.pushInt(mask);
+        asm.op(ClassAssembler.IAND);
+        emitBailoutIf(ClassAssembler.IFEQ, index);
+    }
+
+    private void emitCompare(int opcode) {
+        ClassAssembler.Label set = asm.newLabel();
+        ClassAssembler.Label done = asm.newLabel();
+        asm.jump(opcode, set);
+        asm.pushInt(0);
+        asm.jump(ClassAssembler.GOTO, done);
+        asm.bind(set);
+        asm.pushInt(1);
+        asm.bind(done);
+    }
+
+    private void emitSpecial(Instruction instruction, int index) {
+        int rs = instruction.rs();
+        int rt = instruction.rt();
+        int rd = instruction.rd();
+
+        switch (instruction.functor()) {
+        case 0x00: case 0x02: case 0x03: // SLL, SRL, SRA
+            loadRegister(rt);
+            asm.pushInt(instruction.imm5());
+            asm.op(instruction.functor() == 0x00 ? ClassAssembler.ISHL : instruction.functor() == 0x02 ? ClassAssembler.IUSHR : ClassAssembler.ISHR);
+            storeRegister(rd);
+            break;
+        case 0x04: case 0x06: case 0x07: // SLLV, SRLV, SRAV
+            loadRegister(rt);
+            loadRegister(rs);
+            asm.op(instruction.functor() == 0x04 ? ClassAssembler.ISHL : instruction.functor() == 0x06 ? ClassAssembler.IUSHR : ClassAssembler.ISHR);
+            storeRegister(rd);
+            break;
+        case 0x10: case 0x12: // MFHI, MFLO
+            loadMIPS();
+            asm.field(ClassAssembler.GETFIELD, MIPS_CLASS, instruction.functor() == 0x10 ? "hi" : "lo", "I");
+            storeRegister(rd);
+            break;
+        case 0x11: case 0x13: // MTHI, MTLO
+            loadMIPS();
+            loadRegister(rs);
+            asm.field(ClassAssembler.PUTFIELD, MIPS_CLASS, instruction.functor() == 0x11 ? "hi" : "lo", "I");
+            break;
+        case 0x18: case 0x19: case 0x1A: case 0x1B: // MULT, MULTU, DIV, DIVU
+            loadMIPS();
+            loadRegister(rs);
+            loadRegister(rt);
+            invokeHelper(instruction.functor() == 0x18 ? "multiply" : instruction.functor() == 0x19 ? "multiplyUnsigned" : instruction.functor() == 0x1A ? "divide" : "divideUnsigned",
+                    "(L" + MIPS_CLASS + ";II)V");
+            break;
+        case 0x20: case 0x22: // ADD, SUB
+            loadRegister(rs);
+            loadRegister(rt);
+            invokeHelper(instruction.functor() == 0x20 ? "addOverflows" : "subtractOverflows", "(II)Z");
+            emitBailoutIf(ClassAssembler.IFEQ, index);
+            emitAddSubtract(rs, rt, rd, instruction.functor() == 0x22);
+            break;
+        case 0x21: case 0x23: // ADDU, SUBU
+            emitAddSubtract(rs, rt, rd, instruction.functor() == 0x23);
+            break;
+        case 0x24: case 0x25: case 0x26: case 0x27: // AND, OR, XOR, NOR
+            loadRegister(rs);
+            loadRegister(rt);
+            asm.op(instruction.functor() == 0x24 ? ClassAssembler.IAND : instruction.functor() == 0x26 ? ClassAssembler.IXOR : ClassAssembler.IOR);
+            if (instruction.functor() == 0x27) {
+                asm.pushInt(-1);
+                asm.op(ClassAssembler.IXOR);
+            }
+            storeRegister(rd);
+            break;
+        case 0x2A: // SLT
+            loadRegister(rs);
+            loadRegister(rt);
+            emitCompare(ClassAssembler.IF_ICMPLT);
+            storeRegister(rd);
+            break;
+        case 0x2B: // SLTU
+            loadRegister(rs);
+            loadRegister(rt);
+            asm.invoke(ClassAssembler.INVOKESTATIC, "java/lang/Integer", "compareUnsigned", "(II)I");
+            emitCompare(ClassAssembler.IFLT);
+            storeRegister(rd);
+            break;
+        }
+    }
+
+    /* Wrapping add or subtract, ADD and SUB emit it after their overflow check */
+    private void emitAddSubtract(int rs, int rt, int rd, boolean subtract) {
+        loadRegister(rs);
+        loadRegister(rt);
+        asm.op(subtract ? ClassAssembler.ISUB : ClassAssembler.IADD);
+        storeRegister(rd);
+    }
+
+    /* Leaves rs + immediate on the stack, ADDI emits it after its overflow check */
+    private void emitAddImmediate(int rs, int immediate) {
+        loadRegister(rs);
+        asm.pushInt(immediate);
+        asm.op(ClassAssembler.IADD);
+    }
+
+    /* Returns the register written by the instruction, which cancels a pending load to it */
+    private int emitImmediate(Instruction instruction, int index) {
+        int rs = instruction.rs();
+        int rt = instruction.rt();
+
+        switch (instruction.opcode()) {
+        case 0x08: // ADDI
+            loadRegister(rs);
+            asm.pushInt(instruction.signedImmediate());
+            invokeHelper("addOverflows", "(II)Z");
+            emitBailoutIf(ClassAssembler.IFEQ, index);
+            emitAddImmediate(rs, instruction.signedImmediate());
+            break;
+        case 0x09: // ADDIU
+            emitAddImmediate(rs, instruction.signedImmediate());
+            break;
+        case 0x0A: // SLTI
+            loadRegister(rs);
+            asm.pushInt(instruction.signedImmediate());
+            emitCompare(ClassAssembler.IF_ICMPLT);
+            break;
+        case 0x0B: // SLTIU writes the register directly, so a pending load still lands on top of it
+            loadRegister(rs);
+            asm.pushInt(instruction.signedImmediate());
+            asm.invoke(ClassAssembler.INVOKESTATIC, "java/lang/Integer", "compareUnsigned", "(II)I");
+            emitCompare(ClassAssembler.IFLT);
+            storeRegister(rt);
+            return -1;
+        case 0x0C: case 0x0D: case 0x0E: // ANDI, ORI, XORI
+            loadRegister(rs);
+            asm.pushInt(instruction.unsignedImmediate());
+            asm.op(instruction.opcode() == 0x0C ? ClassAssembler.IAND : instruction.opcode() == 0x0D ? ClassAssembler.IOR : ClassAssembler.IXOR);
+            break;
+        case 0x0F: // LUI
+            asm.pushInt(instruction.unsignedImmediate() << 16);
+            break;
+        }
+        storeRegister(rt);
+        return rt;
+    }
+
+    private void emitLoad(Instruction instruction, int index, int valueLocal) {
+        int rt = instruction.rt();
+        emitAddress(instruction);
+
+        switch (instruction.opcode()) {
+        case 0x20: // LB
+            loadMIPS();
+            asm.iload(LOCAL_ADDRESS);
+            invokeMIPS("readByte", "(I)B");
+            break;
+        case 0x21: // LH
+            emitAlignmentCheck(1, index);
+            loadMIPS();
+            asm.iload(LOCAL_ADDRESS);
+            invokeMIPS("readShort", "(I)S");
+            break;
+        case 0x22: case 0x26: // LWL, LWR
+            loadMIPS();
+            asm.iload(LOCAL_ADDRESS);
+            if (pendingRegister == rt && rt != 0)
+                asm.iload(pendingLocal);
+            else
+                loadRegister(rt);
+            invokeHelper(instruction.opcode() == 0x22 ? "loadLeft" : "loadRight", "(L" + MIPS_CLASS + ";II)I");
+            break;
+        case 0x23: // LW
+            emitAlignmentCheck(3, index);
+            loadMIPS();
+            asm.iload(LOCAL_ADDRESS);
+            invokeMIPS("readInt", "(I)I");
+            break;
+        case 0x24: // LBU
+            loadMIPS();
+            asm.iload(LOCAL_ADDRESS);
+            invokeMIPS("readByteUnsigned", "(I)I");
+            break;
+        case 0x25: // LHU
+            emitAlignmentCheck(1, index);
+            loadMIPS();
+            asm.iload(LOCAL_ADDRESS);
+            invokeMIPS("readShortUnsigned", "(I)I");
+            break;
+        }
+
+        if (rt == 0)
+            asm.op(ClassAssembler.POP);
+        else
+            asm.istore(valueLocal);
+    }
+
+    private void emitStore(Instruction instruction, int index) {
+        emitAddress(instruction);
+
+        switch (instruction.opcode()) {
+        case 0x28: // SB
+            loadMIPS();
+            asm.iload(LOCAL_ADDRESS);
+            loadRegister(instruction.rt());
+            asm.op(ClassAssembler.I2B);
+            invokeMIPS("writeByte", "(IB)V");
+            break;
+        case 0x29: // SH
+            emitAlignmentCheck(1, index);
+            loadMIPS();
+            asm.iload(LOCAL_ADDRESS);
+            loadRegister(instruction.rt());
+            asm.op(ClassAssembler.I2S);
+            invokeMIPS("writeShort", "(IS)V");
+            break;
+        case 0x2A: case 0x2E: // SWL, SWR
+            loadMIPS();
+            asm.iload(LOCAL_ADDRESS);
+            loadRegister(instruction.rt());
+            invokeHelper(instruction.opcode() == 0x2A ? "storeLeft" : "storeRight", "(L" + MIPS_CLASS + ";II)V");
+            break;
+        case 0x2B: // SW
+            emitAlignmentCheck(3, index);
+            loadMIPS();
+            asm.iload(LOCAL_ADDRESS);
+            loadRegister(instruction.rt());
+            invokeMIPS("writeInt", "(II)V");
+            break;
+        }
+    }
+
+    private void commitPendingLoad(int written) {
+        if (pendingRegister != 0 && pendingRegister != written) {
+            asm.iload(pendingLocal);
+            asm.istore(registerLocal(pendingRegister));
+        }
+        pendingRegister = 0;
+    }
+
+    private void emitInstruction(Instruction instruction, int index) {
+        int written = -1;
+        int loaded = 0;
+        int valueLocal = LOCAL_PENDING_BASE + (index & 1);
+        boolean memoryAccess = false;
+
+        if (instruction.opcode() == 0x00) {
+            emitSpecial(instruction, index);
+            int functor = instruction.functor();
+            if (functor != 0x11 && functor != 0x13 && (functor < 0x18 || functor > 0x1B))
+                written = instruction.rd();
+        } else if (isLoad(instruction)) {
+            emitLoad(instruction, index, valueLocal);
+            written = instruction.rt();
+            loaded = instruction.rt();
+            memoryAccess = true;
+        } else if (isStore(instruction)) {
+            emitStore(instruction, index);
+            memoryAccess = true;
+        } else {
+            written = emitImmediate(instruction, index);
+        }
+
+        commitPendingLoad(written);
+        pendingRegister = loaded;
+        pendingLocal = valueLocal;
+
+        // Memory handlers can raise interrupts or overwrite code, leave while the state is still clean
+        boolean last = index == blockLength - 1 || (hasBranch && index >= blockLength - 2);
+        if (memoryAccess && !last) {
+            ClassAssembler.Label resume = asm.newLabel();
+            loadMIPS();
+            invokeMIPS("blockExitRequested", "()Z");
+            asm.jump(ClassAssembler.IFEQ, resume);
+            emitExit(blockPC + (index + 1) * 4, index + 1, pendingRegister, pendingLocal);
+            asm.bind(resume);
+        }
+    }
+
+    private void emitBranch(Instruction instruction, int index) {
+        int pc = blockPC + index * 4;
+        int rs = instruction.rs();
+        int rt = instruction.rt();
+        int written = -1;
+
+        linkRegister = 0;
+        switch (instruction.opcode()) {
+        case 0x00: // JR, JALR
+            loadRegister(rs);
+            asm.istore(LOCAL_TARGET);
+            asm.iload(LOCAL_TARGET);
+            asm.pushInt(3);
+            asm.op(ClassAssembler.IAND);
+            emitBailoutIf(ClassAssembler.IFEQ, index);
+            asm.pushInt(1);
+            asm.istore(LOCAL_TAKEN);
+            if (instruction.functor() == 0x09) {
+                // JALR writes RD directly and setJump() clears the link, so a pending load still lands on RD
+                asm.pushInt(pc + 8);
+                storeRegister(instruction.rd());
+            }
+            break;
+        case 0x01: { // BLTZ, BGEZ, BLTZAL, BGEZAL
+            boolean link = (rt & 0x1E) == 0x10;
+            loadRegister(rs);
+            emitCompare((rt & 1) == 0 ? ClassAssembler.IFLT : ClassAssembler.IFGE);
+            asm.istore(LOCAL_TAKEN);
+            asm.pushInt(pc + instruction.signedImmediate() * 4 + 4);
+            asm.istore(LOCAL_TARGET);
+            if (link) {
+                asm.pushInt(pc + 8);
+                storeRegister(31);
+                linkRegister = 31;
+                written = 31;
+            }
+            break;
+        }
+        case 0x02: case 0x03: // J, JAL
+            asm.pushInt(1);
+            asm.istore(LOCAL_TAKEN);
+            asm.pushInt((pc & 0xF0000000) | (instruction.target() << 2));
+            asm.istore(LOCAL_TARGET);
+            if (instruction.opcode() == 0x03) {
+                asm.pushInt(pc + 8);
+                storeRegister(31);
+                linkRegister = 31;
+                written = 31;
+            }
+            break;
+        case 0x04: case 0x05: // BEQ, BNE
+            loadRegister(rs);
+            loadRegister(rt);
+            emitCompare(instruction.opcode() == 0x04 ? ClassAssembler.IF_ICMPEQ : ClassAssembler.IF_ICMPNE);
+            asm.istore(LOCAL_TAKEN);
+            asm.pushInt(pc + instruction.signedImmediate() * 4 + 4);
+            asm.istore(LOCAL_TARGET);
+            break;
+        case 0x06: case 0x07: // BLEZ, BGTZ
+            loadRegister(rs);
+            emitCompare(instruction.opcode() == 0x06 ? ClassAssembler.IFLE : ClassAssembler.IFGT);
+            asm.istore(LOCAL_TAKEN);
+            asm.pushInt(pc + instruction.signedImmediate() * 4 + 4);
+            asm.istore(LOCAL_TARGET);
+            break;
+        }
+
+        commitPendingLoad(written);
+    }
+
+    private void emitBlockEnd() {
+        int count = blockLength;
+        int fallthrough = blockPC + blockLength * 4;
+
+        if (hasBranch) {
+            ClassAssembler.Label notTaken = asm.newLabel();
+            ClassAssembler.Label done = asm.newLabel();
+            asm.iload(LOCAL_TAKEN);
+            asm.jump(ClassAssembler.IFEQ, notTaken);
+            asm.iload(LOCAL_TARGET);
+            asm.jump(ClassAssembler.GOTO, done);
+            asm.bind(notTaken);
+            asm.pushInt(fallthrough);
+            asm.bind(done);
+            asm.istore(LOCAL_EXIT_PC);
+        } else {
+            asm.pushInt(fallthrough);
+            asm.istore(LOCAL_EXIT_PC);
+        }
+
+        asm.pushInt(count);
+        asm.istore(LOCAL_EXIT_COUNT);
+        asm.pushInt(pendingRegister);
+        asm.istore(LOCAL_EXIT_PENDING_REGISTER);
+        if (pendingRegister != 0) {
+            asm.iload(pendingLocal);
+            asm.istore(LOCAL_EXIT_PENDING_VALUE);
+        }
+        asm.pushInt(0);
+        asm.istore(LOCAL_EXIT_BRANCH);
+    }
+
+    /* Helpers called from compiled code, these mirror the interpreter */
+    static void multiply(MIPS mips, int rs, int rt) {
+        long result = (long)rs * (long)rt;
+        mips.hi = (int)(result >>> 32);
+        mips.lo = (int)result;
+    }
+
+    static void multiplyUnsigned(MIPS mips, int rs, int rt) {
+        long result = ((long)rs & 0xFFFFFFFFL) * ((long)rt & 0xFFFFFFFFL);
+        mips.hi = (int)(result >>> 32);
+        mips.lo = (int)result;
+    }
+
+    static void divide(MIPS mips, int rs, int rt) {
+        if (rt == 0) {
+            mips.hi = rs;
+            mips.lo = rs >= 0 ? -1 : +1;
+        } else if (rs == -0x80000000 && rt == -1) {
+            mips.hi = 0;
+            mips.lo = -0x80000000;
+        } else {
+            mips.lo = rs / rt;
+            mips.hi = rs % rt;
+        }
+    }
+
+    static void divideUnsigned(MIPS mips, int rs, int rt) {
+        if (rt == 0) {
+            mips.hi = rs;
+            mips.lo = 0xFFFFFFFF;
+        } else {
+            mips.lo = Integer.divideUnsigned(rs, rt);
+            mips.hi = Integer.remainderUnsigned(rs, rt);
+        }
+    }
+
+    static boolean addOverflows(int a, int b) {
+        int result = a + b;
+        return ((a ^ b) & 0x80000000) == 0 && ((result ^ a) & 0x80000000) != 0;
+    }
+
+    static boolean subtractOverflows(int a, int b) {
+        int result = a - b;
+        return ((a ^ b) & 0x80000000) != 0 && ((result ^ a) & 0x80000000) != 0;
+    }
+
+    static int loadLeft(MIPS mips, int address, int old) {
+        int offset = (address & 3) * 8;
+        int data = mips.readInt(address & ~3);
+        return (old & (0x00FFFFFF >>> offset)) | (data << (24 - offset));
+    }
+
+    static int loadRight(MIPS mips, int address, int old) {
+        int offset = (address & 3) * 8;
+        int data = mips.readInt(address & ~3);
+        return (old & (0xFFFFFF00 << (24 - offset))) | (data >>> offset);
+    }
+
+    static void storeLeft(MIPS mips, int address, int value) {
+        int offset = (address & 3) * 8;
+        int data = mips.readInt(address & ~3);
+        mips.writeInt(address & ~3, (value >>> (24 - offset)) | (data & (0xFFFFFF00 << offset)));
+    }
+
+    static void storeRight(MIPS mips, int address, int value) {
+        int offset = (address & 3) * 8;
+        int data = mips.readInt(address & ~3);
+        mips.writeInt(address & ~3, (value << offset) | (data & (0x00FFFFFF >> (24 - offset))));
+    }
+}
@@ -92,7 +92,13 @@ public class GUI {
             g.setColor(new Color(100, 100, 255, 255));
             if (ctr < 100)
                 ttyLogTextArea.append(String.format("hello aaaaaaaaaaaaaaaaaaa %d\n", ++ctr)); 
-            g.drawImage(emulator.gpu.getVram(), 0, 0, null);
+            // The display area is stretched to 4:3 whatever its resolution
+            int width = emulator.gpu.getFramebufferWidth();
+            int height = emulator.gpu.getFramebufferHeight();
+            int displayWidth = WINDOW_HEIGHT * 4 / 3;
+            int displayX = (WINDOW_WIDTH - displayWidth) / 2;
+            if (width > 0 && height > 0)
+                g.drawImage(emulator.gpu.getFramebuffer(), displayX, 0, displayX + displayWidth, WINDOW_HEIGHT, 0, 0, width, height, null);
             // g.drawString(String.format("Ran for %d secs", emulator.stats.microsecondsRan / 1000000), 5, currentLine);
             currentLine += NEWLINE;
             // g.drawString(String.format("Emulator elapsed us: %.3fus", (float)emulator.stats.microsecondsRanPerFrame), 5, currentLine);